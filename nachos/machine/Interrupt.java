@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,17 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		heapTime = new long[initialCapacity];
+		heapId = new long[initialCapacity];
+		heapSlot = new int[initialCapacity];
+		slotType = new String[initialCapacity];
+		slotHandler = new Runnable[initialCapacity];
+		freeSlots = new int[initialCapacity];
+		for (int i = 0; i < initialCapacity; i++)
+			freeSlots[i] = initialCapacity - 1 - i;
+		numFreeSlots = initialCapacity;
+		numPending = 0;
 	}
 
 	/**
@@ -119,16 +128,50 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Wait for the next interrupt, like a hardware idle instruction. Advances
+	 * the simulated time straight to the time of the next pending interrupt,
+	 * charging the skipped time as idle, and invokes the handlers that are
+	 * then due. Interrupts must be enabled. Returns immediately if no
+	 * interrupt is pending.
+	 */
+	public void idle() {
+		Lib.assertTrue(enabled);
+
+		Stats stats = privilege.stats;
+		long next = nextInterruptTime();
+		if (next == Long.MAX_VALUE)
+			return;
+
+		if (next > stats.totalTicks) {
+			Lib.debug(dbgInt, "Idling until time = " + next);
+
+			stats.idleTicks += next - stats.totalTicks;
+			stats.totalTicks = next;
+		}
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == heapTime.length)
+			grow();
+
+		int slot = freeSlots[--numFreeSlots];
+		slotType[slot] = type;
+		slotHandler[slot] = handler;
+
+		siftUp(numPending++, time, numPendingInterruptsCreated++, slot);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +194,35 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private void tick(boolean inKernelMode, int count) {
+		Stats stats = privilege.stats;
+		long ticks = (long) count
+				* (inKernelMode ? Stats.KernelTick : Stats.UserTick);
+
+		Lib.assertTrue(count >= 0);
+		Lib.assertTrue(stats.totalTicks + ticks < nextInterruptTime());
+
+		// keep the per-tick debug output identical
+		if (Lib.test(dbgInt)) {
+			for (int i = 0; i < count; i++)
+				tick(inKernelMode);
+			return;
+		}
+
+		if (inKernelMode)
+			stats.kernelTicks += ticks;
+		else
+			stats.userTicks += ticks;
+		stats.totalTicks += ticks;
+	}
+
+	private long nextInterruptTime() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return heapTime[0];
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +231,24 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (numPending == 0 || heapTime[0] > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && heapTime[0] <= time) {
+			int slot = heapSlot[0];
+			String type = slotType[slot];
+			Runnable handler = slotHandler[slot];
 
-			Lib.assertTrue(next.time <= time);
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,46 +259,114 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		// debug output only, so sorting a copy of the heap is fine
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (heapTime[a] != heapTime[b])
+					return Long.compare(heapTime[a], heapTime[b]);
+				else
+					return Long.compare(heapId[a], heapId[b]);
+			}
+		});
+
+		for (int i = 0; i < numPending; i++)
+			System.out.println("  " + slotType[heapSlot[order[i]]]
+					+ ", scheduled at " + heapTime[order[i]]);
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * Remove the earliest pending interrupt from the heap and return its
+	 * handler slot to the free pool.
+	 */
+	private void removeFirst() {
+		int slot = heapSlot[0];
+		slotType[slot] = null;
+		slotHandler[slot] = null;
+		freeSlots[numFreeSlots++] = slot;
+
+		int last = --numPending;
+		if (last > 0)
+			siftDown(0, heapTime[last], heapId[last], heapSlot[last]);
+	}
+
+	/**
+	 * Place the entry <tt>(time, id, slot)</tt> at or above heap position
+	 * <tt>i</tt>, moving larger parents down as needed.
+	 */
+	private void siftUp(int i, long time, long id, int slot) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!earlier(time, id, heapTime[parent], heapId[parent]))
+				break;
+
+			move(parent, i);
+			i = parent;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+		heapTime[i] = time;
+		heapId[i] = id;
+		heapSlot[i] = slot;
+	}
+
+	/**
+	 * Place the entry <tt>(time, id, slot)</tt> at or below heap position
+	 * <tt>i</tt>, moving smaller children up as needed.
+	 */
+	private void siftDown(int i, long time, long id, int slot) {
+		int half = numPending >>> 1;
+
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < numPending
+					&& earlier(heapTime[right], heapId[right], heapTime[child],
+							heapId[child]))
+				child = right;
+
+			if (!earlier(heapTime[child], heapId[child], time, id))
+				break;
+
+			move(child, i);
+			i = child;
 		}
 
-		long time;
+		heapTime[i] = time;
+		heapId[i] = id;
+		heapSlot[i] = slot;
+	}
 
-		String type;
+	private void move(int from, int to) {
+		heapTime[to] = heapTime[from];
+		heapId[to] = heapId[from];
+		heapSlot[to] = heapSlot[from];
+	}
 
-		Runnable handler;
+	/**
+	 * Interrupts are ordered by time, and interrupts scheduled for the same
+	 * time occur in the order they were scheduled.
+	 */
+	private static boolean earlier(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
 
-		private long id;
+	private void grow() {
+		int oldCapacity = heapTime.length;
+		int capacity = oldCapacity * 2;
+
+		heapTime = Arrays.copyOf(heapTime, capacity);
+		heapId = Arrays.copyOf(heapId, capacity);
+		heapSlot = Arrays.copyOf(heapSlot, capacity);
+		slotType = Arrays.copyOf(slotType, capacity);
+		slotHandler = Arrays.copyOf(slotHandler, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+		for (int i = capacity - 1; i >= oldCapacity; i--)
+			freeSlots[numFreeSlots++] = i;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +375,29 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/*
+	 * Pending interrupts are kept in a binary min-heap ordered by (time, id),
+	 * stored in parallel primitive arrays so scheduling does not allocate.
+	 * Each heap entry refers to a slot holding its type and handler; slots
+	 * are recycled through the freeSlots stack.
+	 */
+	private long[] heapTime;
+
+	private long[] heapId;
+
+	private int[] heapSlot;
+
+	private int numPending;
+
+	private String[] slotType;
+
+	private Runnable[] slotHandler;
+
+	private int[] freeSlots;
+
+	private int numFreeSlots;
+
+	private static final int initialCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +409,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long nextInterruptTime() {
+			return Interrupt.this.nextInterruptTime();
+		}
 	}
 }
@@ -40,13 +40,25 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks"),
+				"Processor.engine should be interpreter or blocks");
+		usingBlocks = engine.equals("blocks");
+
+		batchingTicks = Config.getBoolean("Processor.batchTicks", false);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
+		flushTranslationCache();
+
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		decodeCache = new Decoded[numPhysPages][];
+		blockCache = new Block[numPhysPages][];
+
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
@@ -93,16 +105,189 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		if (batchingTicks)
+			resetTickBudget();
+
 		while (true) {
+			if (usingBlocks && !Lib.test(dbgProcessor)
+					&& !Lib.test(dbgDisassemble)
+					&& !Lib.test(dbgFullDisassemble)) {
+				runBlock(inst);
+				continue;
+			}
+
 			try {
 				inst.run();
 			}
 			catch (MipsException e) {
-				e.handle();
+				handleException(e);
+				continue;
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
+		}
+	}
+
+	/**
+	 * Advance the simulated time after a user instruction. Normally this just
+	 * calls <tt>tick(false)</tt> on the interrupt controller. When batching
+	 * ticks (the <tt>Processor.batchTicks</tt> configuration key), ticks that
+	 * cannot possibly trigger an interrupt are only counted here, and are
+	 * charged in bulk just before the instruction whose tick makes the next
+	 * pending interrupt due, or before the kernel is entered to handle an
+	 * exception. Simulated time is therefore the same in both modes whenever
+	 * anything can observe it.
+	 */
+	private void tick() {
+		if (batchingTicks && unchargedTicks < tickBudget) {
+			unchargedTicks++;
+			return;
+		}
+
+		chargeTicks();
+		privilege.interrupt.tick(false);
+		if (batchingTicks)
+			resetTickBudget();
+	}
+
+	/**
+	 * Deliver an exception to the kernel, followed by the tick for the
+	 * instruction that caused it.
+	 * 
+	 * @param e the exception.
+	 */
+	private void handleException(MipsException e) {
+		chargeTicks();
+		e.handle();
+		privilege.interrupt.tick(false);
+		if (batchingTicks)
+			resetTickBudget();
+	}
+
+	/**
+	 * Charge all ticks counted by <tt>tick()</tt> but not yet charged.
+	 */
+	private void chargeTicks() {
+		if (unchargedTicks > 0) {
+			privilege.interrupt.tick(false, unchargedTicks);
+			unchargedTicks = 0;
+		}
+	}
+
+	/**
+	 * Recompute how many instructions can run before one of their ticks could
+	 * make a pending interrupt due.
+	 */
+	private void resetTickBudget() {
+		long ticks = privilege.interrupt.nextInterruptTime()
+				- privilege.stats.totalTicks - 1;
+
+		tickBudget = (int) Math.max(0,
+				Math.min(ticks / Stats.UserTick, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Execute the basic block starting at the current PC, using the block
+	 * engine. The PC is translated once for the whole block, after which the
+	 * block's instructions run back to back with the same per-instruction
+	 * semantics as the interpreter: each instruction (or exception) is
+	 * followed by exactly one tick, branch delay slots and delayed loads are
+	 * handled by <tt>Instruction</tt> as usual, and an exception ends the
+	 * block with the PC pointing at the faulting instruction.
+	 * 
+	 * <p>
+	 * Blocks are not compiled: every instruction still runs through
+	 * <tt>Instruction</tt>. What a block saves is the address translation,
+	 * memory read and decode of each fetch.
+	 * 
+	 * <p>
+	 * The block is abandoned early if the PC leaves it, if one of its words
+	 * was rewritten, or if the address translation changed while an
+	 * interrupt handler ran (for example because another thread was
+	 * scheduled).
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runBlock(Instruction inst) {
+		try {
+			int pc = registers[regPC];
+			int paddr = translate(pc, 4, false);
+			Block block = findBlock(paddr);
+			int epoch = mappingEpoch;
+
+			for (int i = 0; i < block.insts.length; i++) {
+				if (i > 0
+						&& (registers[regPC] != pc + i * 4 || mappingEpoch != epoch))
+					return;
+
+				Decoded decoded = block.insts[i];
+
+				// the word was rewritten since the block was built, by a store
+				// or by the kernel loading something else into this frame
+				if (Lib.bytesToInt(mainMemory, block.paddr + i * 4, 4) != decoded.value) {
+					blockCache[block.paddr / pageSize] = null;
+					return;
+				}
+
+				inst.run(decoded);
+
+				tick();
+			}
+		}
+		catch (MipsException e) {
+			handleException(e);
+		}
+	}
+
+	/**
+	 * Return the basic block starting at physical address <i>paddr</i>,
+	 * building it first if necessary. A block extends until a branch (plus
+	 * its delay slot), an instruction that always traps, or the end of the
+	 * physical page, whichever comes first.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private Block findBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) >> 2;
+
+		Block[] page = blockCache[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		if (page[index] != null)
+			return page[index];
+
+		int end = (ppn + 1) * pageSize;
+		int length = 0;
+		Decoded[] insts = new Decoded[pageSize / 4 - index];
+
+		for (int addr = paddr; addr < end; addr += 4) {
+			Decoded decoded = predecode(addr, Lib.bytesToInt(mainMemory, addr, 4));
+			insts[length++] = decoded;
+
+			if (decoded.operation == Mips.SYSCALL
+					|| decoded.operation == Mips.UNIMPL
+					|| decoded.operation == Mips.INVALID)
+				break;
+
+			if (Lib.test(Mips.BRANCH, decoded.flags)) {
+				// include the delay slot if it is on the same page
+				if (addr + 4 < end)
+					insts[length++] = predecode(addr + 4, Lib.bytesToInt(
+							mainMemory, addr + 4, 4));
+				break;
+			}
 		}
+
+		Decoded[] trimmed = new Decoded[length];
+		System.arraycopy(insts, 0, trimmed, 0, length);
+
+		page[index] = new Block(paddr, trimmed);
+		return page[index];
 	}
 
 	/**
@@ -175,6 +360,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		mappingEpoch++;
+		flushTranslationCache();
 	}
 
 	/**
@@ -216,6 +403,33 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		mappingEpoch++;
+		flushTranslationCache();
+	}
+
+	/**
+	 * Discard any cached translation for the specified virtual page of the
+	 * current address space. The processor caches recent translations, so a
+	 * kernel that changes an entry of the current page table in place (for
+	 * example, invalidating it when the page is evicted) must call this
+	 * method. Replacing the page table with <tt>setPageTable()</tt> or
+	 * filling a TLB entry with <tt>writeTLBEntry()</tt> already discards all
+	 * cached translations.
+	 * 
+	 * @param vpn the virtual page whose translation changed.
+	 */
+	public void invalidateTranslation(int vpn) {
+		int slot = vpn & (translationCacheSize - 1);
+
+		if (cachedVPN[slot] == vpn)
+			cachedVPN[slot] = -1;
+
+		mappingEpoch++;
+	}
+
+	private void flushTranslationCache() {
+		for (int i = 0; i < translationCacheSize; i++)
+			cachedVPN[i] = -1;
 	}
 
 	/**
@@ -295,6 +509,21 @@ public final class Processor {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
+		else if ((vaddr & (size - 1)) == 0) {
+			// fast path: a translation that already passed the checks below
+			int vpn = pageFromAddress(vaddr);
+			int slot = vpn & (translationCacheSize - 1);
+
+			if (cachedVPN[slot] == vpn && (!writing || cachedWritable[slot])) {
+				TranslationEntry entry = cachedEntry[slot];
+
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+
+				return cachedBase[slot] + offsetFromAddress(vaddr);
+			}
+		}
 
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
@@ -375,6 +604,13 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		// remember this translation for the fast path
+		int slot = vpn & (translationCacheSize - 1);
+		cachedVPN[slot] = vpn;
+		cachedBase[slot] = ppn * pageSize;
+		cachedEntry[slot] = entry;
+		cachedWritable[slot] = !entry.readOnly;
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
@@ -423,7 +659,40 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+	}
+
+	/**
+	 * Return the predecoded form of the instruction word <i>value</i>, fetched
+	 * from physical address <i>paddr</i>. Decoded instructions are cached per
+	 * physical page. Each cached record remembers the raw word it was decoded
+	 * from, so a page that was rewritten behind the processor's back (e.g. by
+	 * the kernel loading a different virtual page into the frame) is simply
+	 * decoded again.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the raw instruction word.
+	 * @return the decoded instruction.
+	 */
+	private Decoded predecode(int paddr, int value) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) >> 2;
+
+		Decoded[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		Decoded decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
 	}
 
 	/**
@@ -570,6 +839,18 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/** <tt>true</tt> if user ticks are charged in bulk. */
+	private boolean batchingTicks;
+
+	/** User ticks counted by <tt>tick()</tt> that have not been charged. */
+	private int unchargedTicks = 0;
+
+	/**
+	 * The number of ticks <tt>tick()</tt> may count without charging them,
+	 * before the next pending interrupt could become due.
+	 */
+	private int tickBudget = 0;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
@@ -579,6 +860,25 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/** Number of slots in the direct-mapped translation cache. */
+	private static final int translationCacheSize = 64;
+
+	/**
+	 * The virtual page cached in each translation cache slot, or -1 if the
+	 * slot is empty. A virtual page <i>vpn</i> can only be cached in slot
+	 * <tt>vpn % translationCacheSize</tt>.
+	 */
+	private int[] cachedVPN = new int[translationCacheSize];
+
+	/** The physical address of the start of each cached page. */
+	private int[] cachedBase = new int[translationCacheSize];
+
+	/** The entry each cached translation came from, to set used/dirty bits. */
+	private TranslationEntry[] cachedEntry = new TranslationEntry[translationCacheSize];
+
+	/** <tt>true</tt> if the cached page may be written. */
+	private boolean[] cachedWritable = new boolean[translationCacheSize];
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -591,6 +891,32 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Predecoded instructions, indexed by physical page number and then by
+	 * word offset within the page. A page's entry is <tt>null</tt> until an
+	 * instruction is fetched from it, and is reset whenever the processor
+	 * stores to that page.
+	 */
+	private Decoded[][] decodeCache;
+
+	/**
+	 * <tt>true</tt> if the <tt>Processor.engine</tt> configuration key selects
+	 * the basic block engine instead of the plain interpreter.
+	 */
+	private boolean usingBlocks;
+
+	/**
+	 * Cached basic blocks, indexed like <tt>decodeCache</tt> by the
+	 * physical address of their first instruction.
+	 */
+	private Block[][] blockCache;
+
+	/**
+	 * Incremented whenever the page table pointer or a TLB entry is replaced,
+	 * so that a running basic block can tell its translation went stale.
+	 */
+	private int mappingEpoch = 0;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -659,6 +985,21 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute an instruction that has already been fetched and predecoded
+		 * by the block engine.
+		 * 
+		 * @param decoded the instruction at the current PC.
+		 */
+		public void run(Decoded decoded) throws MipsException {
+			this.decoded = decoded;
+			value = decoded.value;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -669,63 +1010,41 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor)) {
+				value = readMem(registers[regPC], 4);
+				decoded = new Decoded(value);
+			}
+			else {
+				int paddr = translate(registers[regPC], 4, false);
+				value = Lib.bytesToInt(mainMemory, paddr, 4);
+				decoded = predecode(paddr, value);
+			}
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
-
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -1096,6 +1415,8 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1113,6 +1434,86 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word itself, and not on any register contents.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
+	/**
+	 * A straight-line run of predecoded instructions, found once and
+	 * executed by <tt>runBlock()</tt>.
+	 */
+	private static class Block {
+		Block(int paddr, Decoded[] insts) {
+			this.paddr = paddr;
+			this.insts = insts;
+		}
+
+		final int paddr;
+
+		final Decoded[] insts;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
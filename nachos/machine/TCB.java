@@ -6,12 +6,21 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. Only one of them runs at a time; a context switch unparks the next
+ * thread and parks the current one.
+ * 
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, TCBs run on virtual threads when the
+ * JVM has them, and the limit on running TCBs is raised from
+ * <tt>maxThreads</tt> to <tt>maxVirtualThreads</tt>. Without them, TCBs run on
+ * platform threads with small stacks and the limit stays as it is.
  * 
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +48,60 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					threadFactory = virtualThreadFactory();
+				}
+			});
+
+			// platform threads, however small their stacks, are not cheap
+			// enough for the higher limit
+			if (threadFactory != null)
+				threadLimit = maxVirtualThreads;
+			else
+				threadFactory = smallStackThreadFactory();
+		}
+	}
+
+	/**
+	 * Return a factory for virtual threads, or <tt>null</tt> if this JVM has
+	 * no virtual threads. Looked up reflectively so that Nachos still builds
+	 * and runs on JVMs without them.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		}
+		catch (Throwable e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return a factory for platform threads with small stacks, to stand in
+	 * for virtual threads.
+	 */
+	private static ThreadFactory smallStackThreadFactory() {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable target) {
+				return new Thread(null, target, "TCB", smallStackSize);
+			}
+		};
+	}
+
+	/**
+	 * Return the maximum number of started, non-destroyed TCBs that can be in
+	 * existence at once.
+	 * 
+	 * @return <tt>maxVirtualThreads</tt> if TCBs run on virtual threads,
+	 * otherwise <tt>maxThreads</tt>.
+	 */
+	public static int getMaxThreads() {
+		return threadLimit;
 	}
 
 	/**
@@ -68,7 +131,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -89,20 +152,23 @@ public final class TCB {
 
 		this.target = target;
 
+		tcbTarget = new Runnable() {
+			public void run() {
+				threadroot();
+			}
+		};
+
 		if (!isFirstTCB) {
 			/*
 			 * If this is not the first TCB, we have to make a new Java thread
 			 * to run it. Creating Java threads is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
-
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					if (threadFactory != null)
+						javaThread = threadFactory.newThread(tcbTarget);
+					else
+						javaThread = new Thread(tcbTarget);
 				}
 			});
 
@@ -199,6 +265,22 @@ public final class TCB {
 		this.javaThread = null;
 	}
 
+	/**
+	 * Detach this TCB from the thread that has just finished on it, so that
+	 * another <tt>KThread</tt> can be run on it later, in place of destroying
+	 * it. This must be the current TCB, and the autograder must have
+	 * authorized its thread to be destroyed. The next thread to be associated
+	 * with this TCB becomes its thread.
+	 */
+	public void recycle() {
+		Lib.assertTrue(this == currentTCB
+				&& javaThread == Thread.currentThread());
+		Lib.assertTrue(nachosThread != null && nachosThread == toBeDestroyed);
+		toBeDestroyed = null;
+
+		nachosThread = null;
+	}
+
 	/**
 	 * Destroy all TCBs and exit Nachos. Same as <tt>Machine.terminate()</tt>.
 	 */
@@ -291,32 +373,27 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
+	 * and unparking the Java thread bound to it. Used in the ping-pong process of
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +423,23 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's that can be in
+	 * existence when TCBs run on virtual threads.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
+	/** The stack size of platform threads standing in for virtual threads. */
+	private static final long smallStackSize = 256 * 1024;
+
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * Creates the Java threads for TCBs, or <tt>null</tt> to create ordinary
+	 * platform threads.
+	 */
+	private static ThreadFactory threadFactory = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,9 +495,11 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because it is the only thing a parked thread checks
+	 * when it wakes up, and writing it is what publishes everything else the
+	 * previous TCB did.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The kernel can instead put the timer in one-shot mode with
+ * <tt>setDeadline()</tt>, in which case it interrupts only at the times the
+ * kernel asks for.
  */
 public final class Timer {
 	/**
@@ -51,6 +56,33 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Switch the timer to one-shot mode and program it to interrupt once at
+	 * absolute time <i>time</i>, replacing any deadline set earlier. A
+	 * deadline of <tt>-1</tt> leaves the timer armed with nothing, so no
+	 * timer interrupts occur until a new deadline is set. Once in one-shot
+	 * mode, the timer never goes back to periodic interrupts.
+	 * 
+	 * @param time the time of the next timer interrupt, or <tt>-1</tt>.
+	 */
+	public void setDeadline(long time) {
+		oneShot = true;
+		deadline = time;
+
+		if (time == -1)
+			return;
+
+		long now = getTime();
+		if (time <= now)
+			time = now + 1;
+
+		// a later pending interrupt is left to fire and be ignored
+		if (pendingAt == -1 || time < pendingAt) {
+			pendingAt = time;
+			privilege.interrupt.schedule(time - now, "timer", timerInterrupt);
+		}
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -61,7 +93,28 @@ public final class Timer {
 	}
 
 	private void timerInterrupt() {
-		scheduleInterrupt();
+		if (oneShot) {
+			long now = getTime();
+
+			// ignore interrupts superseded by an earlier deadline
+			if (pendingAt == -1 || now < pendingAt)
+				return;
+
+			pendingAt = -1;
+			if (deadline == -1)
+				return;
+
+			if (now < deadline) {
+				setDeadline(deadline);
+				return;
+			}
+
+			deadline = -1;
+		}
+		else {
+			scheduleInterrupt();
+		}
+
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
@@ -83,6 +136,14 @@ public final class Timer {
 
 	private long lastTimerInterrupt;
 
+	private boolean oneShot = false;
+
+	/** The programmed one-shot deadline, or -1 if there is none. */
+	private long deadline = -1;
+
+	/** The time of the live one-shot interrupt, or -1 if there is none. */
+	private long pendingAt = -1;
+
 	private Runnable timerInterrupt;
 
 	private Runnable autoGraderInterrupt;
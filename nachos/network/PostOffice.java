@@ -1,5 +1,7 @@
 package nachos.network;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
@@ -14,6 +16,11 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
  * <tt>SynchList</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * Mail for a full mailbox is dropped, as the network itself might have done,
+ * so that the postal worker never waits on one slow port.
  */
 public class PostOffice {
 	/**
@@ -26,9 +33,10 @@ public class PostOffice {
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
+		int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList(capacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -48,6 +56,20 @@ public class PostOffice {
 			}
 		});
 
+		// packets arrive at most once per NetworkTime ticks, and delivering
+		// one takes a few kernel ticks; if the real-time class is full, the
+		// thread is left to the base scheduler
+		if (ThreadedKernel.scheduler instanceof EDFScheduler) {
+			boolean intStatus = Machine.interrupt().disable();
+			boolean admitted = ((EDFScheduler) ThreadedKernel.scheduler).admit(
+					t, Stats.NetworkTime, Stats.NetworkTime,
+					4 * Stats.KernelTick);
+			Machine.interrupt().restore(intStatus);
+
+			if (!admitted)
+				Lib.debug(dbgNet, "postal delivery not admitted as real-time");
+		}
+
 		t.fork();
 	}
 
@@ -71,6 +93,34 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve up to <i>max</i> messages on the specified port, waiting only
+	 * until at least one is available, and add them to <i>mail</i> in the order
+	 * they arrived.
+	 * 
+	 * @param port the port on which to wait for messages.
+	 * @param mail the collection to add the messages to.
+	 * @param max the most messages to retrieve.
+	 * 
+	 * @return the number of messages received.
+	 */
+	public int receive(int port, Collection<MailMessage> mail, int max) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+		ArrayList<Object> burst = new ArrayList<Object>(max);
+		int n = queues[port].drainTo(burst, max);
+
+		for (Object o : burst)
+			mail.add((MailMessage) o);
+
+		if (Lib.test(dbgNet))
+			System.out.println("got " + n + " messages on port " + port);
+
+		return n;
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -94,7 +144,9 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "mailbox " + mail.dstPort
+						+ " full, dropped mail");
 		}
 	}
 
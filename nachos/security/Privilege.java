@@ -157,6 +157,27 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by <i>count</i> ticks at once. This has
+		 * the same effect as calling <tt>tick(inKernelMode)</tt>
+		 * <i>count</i> times, and may only be used if no pending interrupt
+		 * would become due during those ticks.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks to charge.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the scheduled time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextInterruptTime();
 	}
 
 	/**
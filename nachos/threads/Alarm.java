@@ -21,23 +21,40 @@ public class Alarm {
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
+	public Alarm() {
+		this(true);
+	}
 
-	List<Pair> blockedThreadList = new ArrayList<>();
-	boolean removedFromAlarmQueue = false;
+	/**
+	 * Allocate an alarm with an empty timing wheel, and attach it to the
+	 * machine's timer only if <i>attach</i> is set.
+	 */
+	private Alarm(boolean attach) {
+		for (int level = 0; level < numLevels; level++) {
+			for (int slot = 0; slot < wheelSize; slot++)
+				wheel[level][slot] = new Waiter(null);
+		}
+		current = Machine.timer().getTime() >>> granuleShift;
+
+		if (!attach)
+			return;
 
-	public Alarm() {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
 			}
 		});
+
+		tickless = Config.getBoolean("Alarm.tickless", false);
+		if (tickless)
+			program(Long.MAX_VALUE);
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, unless the scheduler lets it keep a longer time slice.
 	 */
 	public void timerInterrupt() {
 
@@ -48,39 +65,191 @@ public class Alarm {
 		// There is no requirement that threads start running immediately after waking
 		// up; just put them on the ready queue in the timer interrupt handler after
 		// they have waited for at least the right amount of time.
-		Iterator<Pair> iter = blockedThreadList.iterator();
-		while (iter.hasNext()) {
-			Pair pair = iter.next();
-			if (pair.getwakeTime() <= Machine.timer().getTime()) {
-				pair.getCurrentThread().ready();
-				iter.remove();
-				removedFromAlarmQueue = true;
+		long now = Machine.timer().getTime();
+		advance(now);
+
+		if (tickless) {
+			long deadline = nextWakeTime();
+			if (KThread.hasReadyThreads())
+				deadline = Math.min(deadline, now + Stats.TimerTicks);
+			program(deadline);
+		}
+
+		if (ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread()))
+			KThread.currentThread().yield();
+	}
+
+	/**
+	 * Called with interrupts disabled when another thread becomes ready to
+	 * run. In tickless mode, make sure a preemption tick is on its way so
+	 * the ready thread gets the CPU within one time slice.
+	 */
+	void threadReady() {
+		if (tickless)
+			programBefore(Machine.timer().getTime() + Stats.TimerTicks);
+	}
+
+	/**
+	 * Program the timer to interrupt at <i>deadline</i>, or not at all if
+	 * <i>deadline</i> is <tt>Long.MAX_VALUE</tt>.
+	 */
+	private void program(long deadline) {
+		programmed = deadline;
+		Machine.timer().setDeadline(deadline == Long.MAX_VALUE ? -1 : deadline);
+	}
+
+	/**
+	 * Move the programmed timer deadline up to <i>deadline</i> if it is not
+	 * already that soon.
+	 */
+	private void programBefore(long deadline) {
+		if (deadline < programmed)
+			program(deadline);
+	}
+
+	/**
+	 * Return the earliest time at which advance() might have work to do:
+	 * the earliest wake time in the finest level, otherwise the start of
+	 * the next occupied slot in a coarser level, which is cascaded then.
+	 */
+	private long nextWakeTime() {
+		if (levelCount[0] > 0) {
+			for (int i = 0; i < wheelSize; i++) {
+				Waiter head = wheel[0][(int) (current + i) & wheelMask];
+				if (head.next == head)
+					continue;
+
+				long next = Long.MAX_VALUE;
+				for (Waiter waiter = head.next; waiter != head; waiter = waiter.next)
+					next = Math.min(next, waiter.thread.alarmWakeTime);
+				return next;
 			}
 		}
-		// for (Pair pair : blockedThreadList) {
-		// if (pair.getwakeTime() > Machine.timer().getTime()) {
-		// pair.getCurrentThread().ready();
-		// }
-		// }
 
-		KThread.currentThread().yield();
+		for (int level = 1; level < numLevels; level++) {
+			if (levelCount[level] == 0)
+				continue;
+
+			int shift = level * wheelBits;
+			long base = current >>> shift;
+			for (int i = 1; i < wheelSize; i++) {
+				Waiter head = wheel[level][(int) (base + i) & wheelMask];
+				if (head.next != head)
+					return (base + i) << shift << granuleShift;
+			}
+		}
+
+		return Long.MAX_VALUE;
 	}
 
-	static class Pair {
-		private KThread currentThread;
-		private long wakeTime;
+	/**
+	 * A sleeping thread's place in the timing wheel. Each thread allocates
+	 * one the first time it calls <tt>waitUntil()</tt> and reuses it after
+	 * that. Slot heads are sentinels, so a waiter can unlink itself without
+	 * knowing which slot it is in.
+	 */
+	static class Waiter {
+		Waiter(KThread thread) {
+			this.thread = thread;
+			prev = next = this;
+		}
+
+		KThread thread;
+
+		Waiter prev, next;
+
+		int level;
+	}
 
-		public Pair(KThread currentThread, long wakeTime) {
-			this.currentThread = currentThread;
-			this.wakeTime = wakeTime;
+	/*
+	 * Sleeping threads live in a hierarchical timing wheel. Time is measured
+	 * in granules of 2^granuleShift ticks. Level L has wheelSize slots, each
+	 * covering 2^(L*wheelBits) granules; a waiter is filed at the level of
+	 * the highest digit in which its wake granule differs from current, so
+	 * inserting and cancelling are O(1). As current advances past a level
+	 * boundary the matching slot is cascaded down into the finer levels.
+	 * All granules before current have been expired.
+	 */
+	private void schedule(Waiter waiter) {
+		long granule = waiter.thread.alarmWakeTime >>> granuleShift;
+		long diff = granule ^ current;
+		int level = (diff < wheelSize) ? 0
+				: (63 - Long.numberOfLeadingZeros(diff)) / wheelBits;
+		Waiter head = wheel[level][(int) (granule >>> (level * wheelBits))
+				& wheelMask];
+
+		waiter.level = level;
+		waiter.prev = head.prev;
+		waiter.next = head;
+		head.prev.next = waiter;
+		head.prev = waiter;
+
+		levelCount[level]++;
+	}
+
+	private void unlink(Waiter waiter) {
+		waiter.prev.next = waiter.next;
+		waiter.next.prev = waiter.prev;
+		waiter.prev = waiter.next = waiter;
+
+		levelCount[waiter.level]--;
+	}
+
+	/**
+	 * Wake every thread whose wake time is at or before <i>now</i>.
+	 */
+	private void advance(long now) {
+		long target = now >>> granuleShift;
+
+		while (true) {
+			expire(wheel[0][(int) current & wheelMask], now);
+			if (current >= target)
+				break;
+
+			// skip ahead to the next granule that can hold anything due
+			long next = target;
+			for (int level = 0; level < numLevels; level++) {
+				if (levelCount[level] > 0) {
+					int shift = level * wheelBits;
+					next = Math.min(next, ((current >>> shift) + 1) << shift);
+					break;
+				}
+			}
+			current = next;
+
+			for (int level = numLevels - 1; level > 0; level--) {
+				int shift = level * wheelBits;
+				if ((current & ((1L << shift) - 1)) == 0)
+					cascade(wheel[level][(int) (current >>> shift) & wheelMask]);
+			}
 		}
+	}
 
-		public KThread getCurrentThread() {
-			return currentThread;
+	private void expire(Waiter head, long now) {
+		Waiter waiter = head.next;
+		while (waiter != head) {
+			Waiter next = waiter.next;
+			if (waiter.thread.alarmWakeTime <= now) {
+				unlink(waiter);
+				wake(waiter.thread);
+			}
+			waiter = next;
 		}
+	}
 
-		public long getwakeTime() {
-			return wakeTime;
+	/**
+	 * Wake a thread whose wake time has come.
+	 */
+	void wake(KThread thread) {
+		thread.alarmWakeTime = -1;
+		thread.ready();
+	}
+
+	private void cascade(Waiter head) {
+		while (head.next != head) {
+			Waiter waiter = head.next;
+			unlink(waiter);
+			schedule(waiter);
 		}
 	}
 
@@ -111,11 +280,20 @@ public class Alarm {
 			return;
 		}
 		boolean state = Machine.interrupt().disable();
-		long wakeTime = Machine.timer().getTime() + x;
-		KThread.currentThread().alarmWakeTime = wakeTime;
-		// System.out.println("KThread.currentThread().alarmWakeTime: " + KThread.currentThread().alarmWakeTime);
-		blockedThreadList.add(new Pair(KThread.currentThread(), wakeTime));
-		KThread.currentThread().sleep();
+		KThread thread = KThread.currentThread();
+		long now = Machine.timer().getTime();
+		long wakeTime = now + x;
+		if (wakeTime < now)
+			wakeTime = Long.MAX_VALUE;
+
+		if (thread.alarmWaiter == null)
+			thread.alarmWaiter = new Waiter(thread);
+
+		thread.alarmWakeTime = wakeTime;
+		schedule(thread.alarmWaiter);
+		if (tickless)
+			programBefore(wakeTime);
+		KThread.sleep();
 		Machine.interrupt().restore(state);
 	}
 
@@ -130,15 +308,17 @@ public class Alarm {
 	 * @param thread the thread whose timer should be cancelled.
 	 */
 	public boolean cancel(KThread thread) { 
-		if (thread.alarmWakeTime != -1){
-			boolean state = Machine.interrupt().disable();
-			thread.alarmWakeTime = -1;
-			thread.ready();
+		boolean state = Machine.interrupt().disable();
+		if (thread.alarmWakeTime == -1) {
 			Machine.interrupt().restore(state);
-			return true;
-		} 
-		
-		return false;
+			return false;
+		}
+
+		unlink(thread.alarmWaiter);
+		thread.alarmWakeTime = -1;
+		thread.ready();
+		Machine.interrupt().restore(state);
+		return true;
 	}
 
 	// Add Alarm testing code to the Alarm class
@@ -262,7 +442,6 @@ public class Alarm {
 			
 			System.out.println("Cancelled - " + test_cancel);
 			
-			System.out.println("Removed from alarm queue - " +ThreadedKernel.alarm.removedFromAlarmQueue);
 
 
 
@@ -272,7 +451,66 @@ public class Alarm {
 		
 	}
 
-	// public static void alarmTest5_WAIT_
+	/**
+	 * Measure the cost of filing a sleeper in the timing wheel and of
+	 * expiring it, as the number of sleepers grows. The wheel belongs to a
+	 * private alarm that is not attached to the timer, and the sleepers are
+	 * threads that are never forked, so the times include no context
+	 * switches and no idle thread. Wake times are spread so that about four
+	 * sleepers fall due per timer interrupt whatever their number, and expiry
+	 * advances the wheel one timer interrupt at a time, as
+	 * <tt>timerInterrupt()</tt> would; with a constant cost per sleeper, every
+	 * column stays flat as the number of sleepers grows.
+	 */
+	public static void alarmBenchmark() {
+		int sleepers[] = {10000, 10000, 100, 1000, 10000, 100000};
+		Random rn = new Random(120);
+
+		for (int i = 0; i < sleepers.length; i++) {
+			final int woken[] = {0};
+			Alarm alarm = new Alarm(false) {
+				void wake(KThread thread) {
+					thread.alarmWakeTime = -1;
+					woken[0]++;
+				}
+			};
+
+			long now = Machine.timer().getTime();
+			Waiter waiters[] = new Waiter[sleepers[i]];
+			long last = now;
+			for (int j = 0; j < waiters.length; j++) {
+				KThread thread = new KThread();
+				thread.alarmWakeTime = now + 1
+						+ rn.nextInt(waiters.length * Stats.TimerTicks / 4);
+				last = Math.max(last, thread.alarmWakeTime);
+				waiters[j] = new Waiter(thread);
+			}
+
+			long start = System.nanoTime();
+			for (int j = 0; j < waiters.length; j++)
+				alarm.schedule(waiters[j]);
+			long inserting = System.nanoTime() - start;
+
+			int interrupts = 0;
+			start = System.nanoTime();
+			for (long time = now; woken[0] < waiters.length; time += Stats.TimerTicks) {
+				alarm.advance(time);
+				interrupts++;
+			}
+			long expiring = System.nanoTime() - start;
+
+			Lib.assertTrue(woken[0] == waiters.length);
+
+			// the first rounds only warm up the JIT
+			if (i < 2)
+				continue;
+
+			System.out.println("alarmBenchmark: " + sleepers[i] + " sleepers, "
+					+ (inserting / waiters.length) + " ns per insertion, "
+					+ (expiring / waiters.length) + " ns per expiry, "
+					+ (expiring / interrupts) + " ns per timer interrupt");
+		}
+	}
 		
 	
 
@@ -284,4 +522,32 @@ public class Alarm {
 		// alarmTest4_WAIT_long_duration();
 		alarmTest4_Thread_cancel(5, 6, 10000000);
 	}
+
+	private static final int granuleShift = 6;
+
+	private static final int wheelBits = 6;
+
+	private static final int wheelSize = 1 << wheelBits;
+
+	private static final int wheelMask = wheelSize - 1;
+
+	/** Enough levels to cover every granule of a 63-bit tick count. */
+	private static final int numLevels = (63 - granuleShift + wheelBits - 1)
+			/ wheelBits;
+
+	private Waiter[][] wheel = new Waiter[numLevels][wheelSize];
+
+	private int[] levelCount = new int[numLevels];
+
+	/** The granule that advance() last expired. */
+	private long current;
+
+	/**
+	 * In tickless mode the timer is programmed for the next wake time, plus
+	 * a preemption tick only while other threads are waiting to run.
+	 */
+	private boolean tickless;
+
+	/** The programmed tickless deadline, or Long.MAX_VALUE if none. */
+	private long programmed = Long.MAX_VALUE;
 }
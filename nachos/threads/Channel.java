@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A bounded, buffered channel of 32-bit words. Unlike a
+ * <tt>Communicator</tt>, a speaker does not wait for a listener: it only
+ * waits while the buffer is full, and a listener only waits while it is
+ * empty. Words are delivered in the order they were spoken.
+ *
+ * <p>
+ * <tt>speak(int[])</tt> and <tt>listen(int[])</tt> move a whole batch under
+ * one acquisition of the channel's lock and wake at most one waiting thread
+ * per batch, so a pipeline between kernel threads pays for a context switch
+ * per batch rather than per word. A woken thread passes the wake-up on if
+ * there is still room or data left for the next waiter. A batch larger than
+ * the free space may be interleaved with words from other speakers.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words the channel can buffer.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		lock = new Lock();
+		notFull = new Condition2(lock);
+		notEmpty = new Condition2(lock);
+	}
+
+	/**
+	 * Put a word into the channel, waiting while it is full.
+	 *
+	 * @param word the word to send.
+	 */
+	public void speak(int word) {
+		lock.acquire();
+
+		while (count == buffer.length)
+			notFull.sleep();
+		put(word);
+		notEmpty.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Put all of <i>words</i> into the channel, waiting whenever it is full.
+	 *
+	 * @param words the words to send, in order.
+	 */
+	public void speak(int[] words) {
+		lock.acquire();
+
+		for (int done = 0; done < words.length;) {
+			while (count == buffer.length)
+				notFull.sleep();
+
+			done += put(words, done, words.length - done);
+			notEmpty.wake();
+		}
+
+		// the space left belongs to the next speaker
+		if (count < buffer.length)
+			notFull.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Put a word into the channel if it has room.
+	 *
+	 * @param word the word to send.
+	 * @return <tt>true</tt> if the word was sent, <tt>false</tt> if the channel
+	 * was full.
+	 */
+	public boolean trySpeak(int word) {
+		lock.acquire();
+
+		boolean sent = count < buffer.length;
+		if (sent) {
+			put(word);
+			notEmpty.wake();
+		}
+
+		lock.release();
+		return sent;
+	}
+
+	/**
+	 * Put as many of <i>words</i> into the channel as it has room for,
+	 * without waiting.
+	 *
+	 * @param words the words to send, in order.
+	 * @return the number of words sent, from the start of <i>words</i>.
+	 */
+	public int trySpeak(int[] words) {
+		lock.acquire();
+
+		int sent = put(words, 0, words.length);
+		if (sent > 0)
+			notEmpty.wake();
+
+		lock.release();
+		return sent;
+	}
+
+	/**
+	 * Take the oldest word from the channel, waiting while it is empty.
+	 *
+	 * @return the word received.
+	 */
+	public int listen() {
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+		int word = take();
+		notFull.wake();
+
+		lock.release();
+		return word;
+	}
+
+	/**
+	 * Take up to <i>words.length</i> of the oldest words from the channel,
+	 * waiting only while it is empty.
+	 *
+	 * @param words the array to fill.
+	 * @return the number of words received, at least one unless
+	 * <i>words</i> is empty.
+	 */
+	public int listen(int[] words) {
+		if (words.length == 0)
+			return 0;
+
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+		int received = take(words);
+		notFull.wake();
+
+		// the words left belong to the next listener
+		if (count > 0)
+			notEmpty.wake();
+
+		lock.release();
+		return received;
+	}
+
+	/**
+	 * Take up to <i>words.length</i> of the oldest words from the channel,
+	 * without waiting.
+	 *
+	 * @param words the array to fill.
+	 * @return the number of words received, possibly zero.
+	 */
+	public int tryListen(int[] words) {
+		lock.acquire();
+
+		int received = take(words);
+		if (received > 0)
+			notFull.wake();
+
+		lock.release();
+		return received;
+	}
+
+	private void put(int word) {
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+	}
+
+	/**
+	 * Copy up to <i>length</i> words from <i>words</i>, starting at
+	 * <i>offset</i>, into the free space, and return how many fit.
+	 */
+	private int put(int[] words, int offset, int length) {
+		int amount = Math.min(length, buffer.length - count);
+		int tail = (head + count) % buffer.length;
+		int first = Math.min(amount, buffer.length - tail);
+
+		System.arraycopy(words, offset, buffer, tail, first);
+		System.arraycopy(words, offset + first, buffer, 0, amount - first);
+		count += amount;
+
+		return amount;
+	}
+
+	private int take() {
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+		return word;
+	}
+
+	/**
+	 * Move up to <i>words.length</i> words out of the buffer, and return how
+	 * many there were.
+	 */
+	private int take(int[] words) {
+		int amount = Math.min(words.length, count);
+		int first = Math.min(amount, buffer.length - head);
+
+		System.arraycopy(buffer, head, words, 0, first);
+		System.arraycopy(buffer, 0, words, first, amount - first);
+		head = (head + amount) % buffer.length;
+		count -= amount;
+
+		return amount;
+	}
+
+	private int[] buffer;
+
+	/** The index of the oldest word in <tt>buffer</tt>. */
+	private int head = 0;
+
+	/** The number of words in <tt>buffer</tt>. */
+	private int count = 0;
+
+	private Lock lock;
+
+	private Condition2 notFull, notEmpty;
+
+	/**
+	 * Check ordering and the non-blocking calls, then send the same stream
+	 * through a three-stage pipeline one word at a time and in batches, and
+	 * report the simulated time each takes.
+	 */
+	public static void selfTest() {
+		Channel channel = new Channel(4);
+		int[] words = new int[6];
+
+		Lib.assertTrue(channel.tryListen(words) == 0);
+		Lib.assertTrue(channel.trySpeak(new int[] {1, 2, 3}) == 3);
+		Lib.assertTrue(channel.trySpeak(4));
+		Lib.assertTrue(!channel.trySpeak(5));
+		Lib.assertTrue(channel.listen() == 1);
+		Lib.assertTrue(channel.trySpeak(new int[] {5, 6}) == 1);
+		Lib.assertTrue(channel.listen(words) == 4);
+		for (int i = 0; i < 4; i++)
+			Lib.assertTrue(words[i] == i + 2);
+
+		System.out.println("Channel: ordering and non-blocking tests passed");
+
+		pipelineTest(1);
+		pipelineTest(32);
+	}
+
+	/**
+	 * Pass 4096 words from a producer through a doubling stage to a consumer,
+	 * <i>batch</i> words at a time, over channels of 64 words.
+	 */
+	private static void pipelineTest(final int batch) {
+		final int total = 4096;
+		final Channel first = new Channel(64);
+		final Channel second = new Channel(64);
+		long sum = 0;
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				int[] words = new int[batch];
+				for (int i = 0; i < total; i += batch) {
+					for (int j = 0; j < batch; j++)
+						words[j] = i + j;
+					if (batch == 1)
+						first.speak(i);
+					else
+						first.speak(words);
+				}
+			}
+		}).setName("producer");
+		KThread doubler = new KThread(new Runnable() {
+			public void run() {
+				int[] words = new int[batch];
+				for (int moved = 0; moved < total;) {
+					if (batch == 1) {
+						second.speak(2 * first.listen());
+						moved++;
+						continue;
+					}
+
+					int n = first.listen(words);
+					int[] out = new int[n];
+					for (int j = 0; j < n; j++)
+						out[j] = 2 * words[j];
+					second.speak(out);
+					moved += n;
+				}
+			}
+		}).setName("doubler");
+
+		long ticks = Machine.timer().getTime();
+		int[] words = new int[batch];
+
+		producer.fork();
+		doubler.fork();
+		for (int received = 0; received < total;) {
+			if (batch == 1) {
+				sum += second.listen();
+				received++;
+				continue;
+			}
+
+			int n = second.listen(words);
+			for (int j = 0; j < n; j++)
+				sum += words[j];
+			received += n;
+		}
+		producer.join();
+		doubler.join();
+
+		Lib.assertTrue(sum == (long) total * (total - 1));
+		System.out.println("Channel: " + total + " words in batches of "
+				+ batch + " took " + (Machine.timer().getTime() - ticks)
+				+ " ticks");
+	}
+}
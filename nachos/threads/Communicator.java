@@ -8,6 +8,8 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ * 
+ * @see nachos.threads.Channel
  */
 public class Communicator {
 	/**
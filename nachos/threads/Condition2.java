@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.ArrayList;
 import java.util.LinkedList;
 
 /**
@@ -24,7 +23,7 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		this.waitQueue = new ArrayList<KThread>();
+		this.waitQueue = new Waiter(null);
 	}
 
 	/**
@@ -38,7 +37,7 @@ public class Condition2 {
 		
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.release();
-		waitQueue.add(KThread.currentThread());
+		enqueue(false);
 		KThread.currentThread().sleep();
 		conditionLock.acquire();
 		Machine.interrupt().restore(intStatus);
@@ -51,13 +50,10 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		if (waitQueue.size() > 0) {
-			KThread kthread = waitQueue.remove(0);
-			boolean cancelStatus = ThreadedKernel.alarm.cancel(kthread);
-			if (!cancelStatus) {
-				kthread.ready();
-			}
-		}
+
+		// skip threads whose timeout has already woken them
+		while (waitQueue.next != waitQueue && !wake(waitQueue.next))
+			;
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -69,10 +65,8 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		while (waitQueue.size() > 0) {
-			KThread kthread = waitQueue.remove(0);
-			kthread.ready();
-		}
+		while (waitQueue.next != waitQueue)
+			wake(waitQueue.next);
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -88,20 +82,89 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.release();
-		waitQueue.add(KThread.currentThread());
-		
+		Waiter waiter = enqueue(true);
+
 		ThreadedKernel.alarm.waitUntil(timeout);
-		if (ThreadedKernel.alarm.removedFromAlarmQueue == true) {
-			ThreadedKernel.alarm.removedFromAlarmQueue = false;
-			waitQueue.remove(KThread.currentThread());
-		} 
-		//TODO: do we need alarm.cancel in wakeAll() too?
+
+		// still queued if the timeout, not wake(), ended the wait
+		if (waiter.condition == this)
+			waiter.unlink();
+
 		conditionLock.acquire();
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Queue the current thread's handle at the tail of this condition.
+	 */
+	private Waiter enqueue(boolean timed) {
+		KThread thread = KThread.currentThread();
+		if (thread.conditionWaiter == null)
+			thread.conditionWaiter = new Waiter(thread);
+
+		Waiter waiter = thread.conditionWaiter;
+		Lib.assertTrue(waiter.condition == null);
+
+		waiter.condition = this;
+		waiter.timed = timed;
+		waiter.prev = waitQueue.prev;
+		waiter.next = waitQueue;
+		waitQueue.prev.next = waiter;
+		waitQueue.prev = waiter;
+
+		return waiter;
+	}
+
+	/**
+	 * Remove a waiter from this condition and wake its thread, cancelling
+	 * its timeout if it has one.
+	 * 
+	 * @return <tt>false</tt> if the thread's timeout had already woken it.
+	 */
+	private boolean wake(Waiter waiter) {
+		waiter.unlink();
+
+		if (!waiter.timed) {
+			waiter.thread.ready();
+			return true;
+		}
+
+		return ThreadedKernel.alarm.cancel(waiter.thread);
+	}
+
+	/**
+	 * A thread's handle on the condition it waits on. Each thread has one,
+	 * reused for every wait, so that waking it, timing it out, or removing it
+	 * is O(1).
+	 */
+	static class Waiter {
+		Waiter(KThread thread) {
+			this.thread = thread;
+			prev = next = this;
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = this;
+			condition = null;
+		}
+
+		KThread thread;
+
+		/** The condition this thread is queued on, or <tt>null</tt>. */
+		Condition2 condition = null;
+
+		/** <tt>true</tt> if the thread also waits on the alarm. */
+		boolean timed;
+
+		Waiter prev, next;
+	}
+
 	private Lock conditionLock;
-	private ArrayList<KThread> waitQueue;
+
+	/** The sentinel of the FIFO of waiting threads. */
+	private Waiter waitQueue;
 
 
 	// Test for condition2
@@ -163,6 +226,50 @@ public class Condition2 {
 	
 
 
+	/**
+	 * Put many threads in timed waits on one condition. Half of them time out
+	 * together, in the same tick; the rest are woken by <tt>wakeAll()</tt>,
+	 * which must cancel their timeouts.
+	 */
+	private static void sleepForTest3(int numWaiters) {
+		final Lock lock = new Lock();
+		final Condition2 cv = new Condition2(lock);
+		final long[] slept = new long[numWaiters];
+		KThread[] waiters = new KThread[numWaiters];
+
+		for (int i = 0; i < numWaiters; i++) {
+			final int which = i;
+			final long timeout = (i % 2 == 0) ? 1000 : 1000000;
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					long t0 = Machine.timer().getTime();
+					cv.sleepFor(timeout);
+					slept[which] = Machine.timer().getTime() - t0;
+					lock.release();
+				}
+			}).setName("timed waiter " + i);
+			waiters[i].fork();
+		}
+
+		ThreadedKernel.alarm.waitUntil(5000);
+
+		lock.acquire();
+		cv.wakeAll();
+		lock.release();
+
+		for (int i = 0; i < numWaiters; i++) {
+			waiters[i].join();
+			if (i % 2 == 0)
+				Lib.assertTrue(slept[i] >= 1000);
+			else
+				Lib.assertTrue(slept[i] < 1000000);
+		}
+
+		System.out.println("sleepForTest3: " + numWaiters
+				+ " timed waiters, timeouts and wakeAll() passed");
+	}
+
     private static class InterlockTest {
         private static Lock lock;
         private static Condition2 cv;
@@ -320,6 +427,7 @@ public class Condition2 {
 
 	public static void selfTest() {
 		sleepForTest1();
+		sleepForTest3(100);
 		sleepForTest2();
 		// cvTestN(100);
 
@@ -0,0 +1,501 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class on top of an
+ * ordinary scheduler.
+ *
+ * <p>
+ * A thread joins the real-time class by passing the admission test in
+ * <tt>admit()</tt>, which takes its period <i>T</i>, its relative deadline
+ * <i>D</i>, and the worst-case CPU time <i>C</i> of one job, all in ticks.
+ * Threads are admitted as long as the sum of <i>C</i>/min(<i>D</i>,
+ * <i>T</i>) over the class stays at or below 1, which is enough for EDF to
+ * meet every deadline if the declared costs hold.
+ *
+ * <p>
+ * Real-time threads are sporadic: a thread woken by another thread at least
+ * <i>T</i> ticks after its current job was released starts a new job, whose
+ * absolute deadline is <i>D</i> ticks after the wake-up. Earlier wake-ups
+ * (for example on a lock in the middle of a job) continue the current job.
+ * A periodic thread calls <tt>waitForNextPeriod()</tt> at the end of each
+ * job. A thread leaves the class when it calls <tt>leave()</tt> or
+ * finishes.
+ *
+ * <p>
+ * Every queue hands out the waiting real-time thread with the earliest
+ * absolute deadline first, and only falls back to the base scheduler, named
+ * by <tt>EDFScheduler.baseScheduler</tt>, when no real-time thread waits. A
+ * running real-time thread is only preempted by the timer for a real-time
+ * thread with an earlier deadline; any other thread is preempted as soon as
+ * a real-time thread is ready. Real-time threads do not donate to, or
+ * inherit from, threads of the base class, so a real-time thread should not
+ * wait for a lock held by an ordinary thread.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler and the base scheduler beneath it.
+	 */
+	public EDFScheduler() {
+		base = (Scheduler) Lib.constructObject(Config.getString(
+				"EDFScheduler.baseScheduler",
+				"nachos.threads.RoundRobinScheduler"));
+	}
+
+	/**
+	 * Allocate a new EDF thread queue on top of a queue of the base scheduler.
+	 *
+	 * @param transferPriority passed on to the base scheduler.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue(base.newThreadQueue(transferPriority),
+				transferPriority, false);
+	}
+
+	/**
+	 * Allocate the ready queue, remembering it so that timer interrupts can
+	 * tell whether a real-time thread is waiting.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new EDFQueue(base.newReadyQueue(), false, true);
+		return readyQueue;
+	}
+
+	/**
+	 * Let the base scheduler charge the running thread, then decide whether
+	 * to preempt it. A real-time thread keeps the CPU unless a real-time
+	 * thread with an earlier deadline is ready.
+	 */
+	public boolean timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Job job = jobs.get(thread);
+		if (job != null)
+			return readyQueue != null && readyQueue.earliest() != null
+					&& readyQueue.earliest().deadline < job.deadline;
+
+		boolean preempt = base.timerInterrupt(thread);
+		return preempt || (readyQueue != null && readyQueue.earliest() != null);
+	}
+
+	/**
+	 * Try to move a thread into the real-time class, or change its
+	 * parameters if it is already there. The thread must not be waiting on a
+	 * queue. Its first job is released now. Must be called with interrupts
+	 * disabled.
+	 *
+	 * @param thread the thread to admit.
+	 * @param period the minimum number of ticks between job releases.
+	 * @param deadline the number of ticks after its release by which each job
+	 * must finish.
+	 * @param cost the worst-case number of ticks of CPU time one job needs.
+	 * @return <tt>true</tt> if the thread was admitted, <tt>false</tt> if
+	 * admitting it could make some thread miss a deadline.
+	 */
+	public boolean admit(KThread thread, long period, long deadline, long cost) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && deadline > 0 && cost > 0);
+
+		if (cost > deadline)
+			return false;
+
+		Job job = jobs.get(thread);
+		Lib.assertTrue(job == null || job.waitingOn == null);
+
+		double old = (job == null) ? 0 : job.density();
+		double density = (double) cost / Math.min(deadline, period);
+		if (totalDensity - old + density > 1 + 1e-9)
+			return false;
+
+		if (job == null) {
+			job = new Job(thread);
+			jobs.put(thread, job);
+		}
+
+		totalDensity += density - old;
+		job.period = period;
+		job.relativeDeadline = deadline;
+		job.cost = cost;
+		job.release(Machine.timer().getTime());
+
+		return true;
+	}
+
+	/**
+	 * Move a thread out of the real-time class, back to the base scheduler.
+	 * The thread must not be waiting on a queue. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @param thread the thread to remove.
+	 */
+	public void leave(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Job job = jobs.remove(thread);
+		if (job != null) {
+			Lib.assertTrue(job.waitingOn == null);
+			totalDensity -= job.density();
+		}
+	}
+
+	/**
+	 * Release the share of the CPU reserved for a real-time thread that has
+	 * finished without calling <tt>leave()</tt>.
+	 */
+	public void threadFinished(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		leave(thread);
+		base.threadFinished(thread);
+	}
+
+	/**
+	 * Return whether a thread is in the real-time class.
+	 *
+	 * @param thread the thread to check.
+	 * @return <tt>true</tt> if the thread has been admitted.
+	 */
+	public boolean isRealTime(KThread thread) {
+		return jobs.containsKey(thread);
+	}
+
+	/**
+	 * Return the number of jobs of a real-time thread that finished after
+	 * their deadline, as counted by <tt>waitForNextPeriod()</tt>.
+	 *
+	 * @param thread a real-time thread.
+	 * @return the number of deadlines the thread has missed.
+	 */
+	public int getDeadlineMisses(KThread thread) {
+		Job job = jobs.get(thread);
+		return (job == null) ? 0 : job.misses;
+	}
+
+	/**
+	 * End the current job of the current thread, which must be a real-time
+	 * thread, and sleep until its next job is released, one period after the
+	 * current one. If the job overran its period, the next job starts at
+	 * once.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Job job = jobs.get(KThread.currentThread());
+		Lib.assertTrue(job != null);
+
+		long now = Machine.timer().getTime();
+		if (now > job.deadline)
+			job.misses++;
+
+		// keep the phase, so that alarm latency does not add up
+		job.release(job.release + job.period);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (job.release > now)
+			ThreadedKernel.alarm.waitUntil(job.release - now);
+	}
+
+	public int getPriority(KThread thread) {
+		return base.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return base.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		base.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return base.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return base.decreasePriority();
+	}
+
+	/**
+	 * A queue of real-time threads, ordered by absolute deadline, in front of
+	 * a queue of the base scheduler.
+	 */
+	protected class EDFQueue extends ThreadQueue {
+		EDFQueue(ThreadQueue baseQueue, boolean transferPriority,
+				boolean isReadyQueue) {
+			this.baseQueue = baseQueue;
+			this.transferPriority = transferPriority;
+			this.isReadyQueue = isReadyQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Job job = jobs.get(thread);
+			if (job == null) {
+				baseQueue.waitForAccess(thread);
+				return;
+			}
+
+			Lib.assertTrue(job.waitingOn == null);
+
+			if (isReadyQueue && thread != KThread.currentThread()) {
+				long now = Machine.timer().getTime();
+				if (now >= job.release + job.period)
+					job.release(now);
+			}
+
+			job.waitingOn = this;
+			job.waitOrder = numWaits++;
+			waiters.add(job);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			baseQueue.acquire(thread);
+		}
+
+		public void transferAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			baseQueue.transferAccess(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Job job = waiters.pollFirst();
+			if (job == null)
+				return baseQueue.nextThread();
+
+			job.waitingOn = null;
+			// keep the base queue's idea of who has access up to date
+			if (transferPriority)
+				baseQueue.acquire(job.thread);
+
+			return job.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Job job : waiters)
+				System.out.print(job.thread + "(d" + job.deadline + ") ");
+			baseQueue.print();
+		}
+
+		/**
+		 * Return the waiting real-time job with the earliest deadline, or
+		 * <tt>null</tt> if no real-time thread waits.
+		 */
+		Job earliest() {
+			return waiters.isEmpty() ? null : waiters.first();
+		}
+
+		private ThreadQueue baseQueue;
+
+		private boolean transferPriority;
+
+		private boolean isReadyQueue;
+
+		private TreeSet<Job> waiters = new TreeSet<Job>(byDeadline);
+	}
+
+	/**
+	 * The real-time parameters of a thread and the state of its current job.
+	 */
+	protected static class Job {
+		Job(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Release a new job at time <i>now</i>.
+		 */
+		void release(long now) {
+			release = now;
+			deadline = now + relativeDeadline;
+		}
+
+		/**
+		 * Return the share of the CPU this thread may claim.
+		 */
+		double density() {
+			return (double) cost / Math.min(relativeDeadline, period);
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		long period, relativeDeadline, cost;
+
+		/** When the current job was released. */
+		long release;
+
+		/** The absolute deadline of the current job. */
+		long deadline;
+
+		/** The number of jobs that finished after their deadline. */
+		int misses = 0;
+
+		/** The queue this thread is waiting on, if any. */
+		EDFQueue waitingOn = null;
+
+		/** When this thread started waiting, to break ties in FIFO order. */
+		long waitOrder;
+	}
+
+	private static final Comparator<Job> byDeadline = new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			if (a.deadline != b.deadline)
+				return Long.compare(a.deadline, b.deadline);
+			return Long.compare(a.waitOrder, b.waitOrder);
+		}
+	};
+
+	private Scheduler base;
+
+	private EDFQueue readyQueue = null;
+
+	/** The real-time class, until each thread leaves or finishes. */
+	private HashMap<KThread, Job> jobs = new HashMap<KThread, Job>();
+
+	/** The sum of the densities of the admitted threads. */
+	private double totalDensity = 0;
+
+	private long numWaits = 0;
+
+	/**
+	 * Test admission and deadline ordering on threads that are never forked,
+	 * then run a periodic thread next to CPU-bound ones, once in the
+	 * real-time class and once without it, and report the deadlines it
+	 * missed.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread normal = new KThread().setName("normal");
+
+		// densities 0.5 and 0.4 fit; another 0.2 does not until b leaves
+		Lib.assertTrue(scheduler.admit(a, 1000, 1000, 500));
+		Lib.assertTrue(scheduler.admit(b, 2000, 1000, 400));
+		Lib.assertTrue(!scheduler.admit(c, 1000, 1000, 200));
+		scheduler.leave(b);
+		Lib.assertTrue(scheduler.admit(c, 4000, 200, 40));
+
+		// real-time threads come first, earliest deadline first
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		queue.waitForAccess(normal);
+		queue.waitForAccess(a);
+		queue.waitForAccess(c);
+		Lib.assertTrue(queue.nextThread() == c);
+		Lib.assertTrue(queue.nextThread() == a);
+		Lib.assertTrue(queue.nextThread() == normal);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		scheduler.leave(a);
+		scheduler.leave(c);
+		Lib.assertTrue(scheduler.totalDensity < 1e-9);
+
+		// a thread that finishes gives its share back
+		KThread full = new KThread(new Runnable() {
+			public void run() {
+			}
+		}).setName("full");
+		Lib.assertTrue(scheduler.admit(full, 1000, 1000, 1000));
+		Machine.interrupt().restore(intStatus);
+
+		full.fork();
+		full.join();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(!scheduler.isRealTime(full));
+		Lib.assertTrue(scheduler.admit(c, 1000, 1000, 1000));
+		scheduler.leave(c);
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("EDFScheduler: admission and ordering tests passed");
+
+		System.out.println("EDFScheduler: periodic thread missed "
+				+ periodicTest(scheduler, true) + " of 10 deadlines as real-time, "
+				+ periodicTest(scheduler, false) + " without");
+	}
+
+	/**
+	 * Run a thread that needs about 200 ticks every 2000, with a deadline of
+	 * 1000, next to three CPU-bound threads, and return how many of its ten
+	 * jobs finished more than 1000 ticks after their nominal release.
+	 */
+	private static int periodicTest(final EDFScheduler scheduler,
+			final boolean realTime) {
+		final boolean done[] = {false};
+		final int misses[] = {0};
+		final long period = 2000, deadline = 1000;
+
+		Runnable spin = new Runnable() {
+			public void run() {
+				while (!done[0]) {
+					// burn simulated time without blocking
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		};
+		Runnable periodic = new Runnable() {
+			public void run() {
+				long release = Machine.timer().getTime();
+				for (int job = 0; job < 10; job++) {
+					for (int i = 0; i < 20; i++) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+
+					long now = Machine.timer().getTime();
+					if (now > release + deadline)
+						misses[0]++;
+
+					release += period;
+					if (realTime)
+						scheduler.waitForNextPeriod();
+					else if (release > now)
+						ThreadedKernel.alarm.waitUntil(release - now);
+				}
+			}
+		};
+
+		KThread[] hogs = new KThread[3];
+		for (int i = 0; i < hogs.length; i++) {
+			hogs[i] = new KThread(spin).setName("hog" + i);
+			hogs[i].fork();
+		}
+
+		KThread thread = new KThread(periodic).setName("periodic");
+		if (realTime) {
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(scheduler.admit(thread, period, deadline, 400));
+			Machine.interrupt().restore(intStatus);
+		}
+		thread.fork();
+		thread.join();
+
+		done[0] = true;
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		return misses[0];
+	}
+}
@@ -0,0 +1,582 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * A completely fair scheduler, in the style of Linux CFS.
+ * 
+ * <p>
+ * Every thread accumulates <i>virtual runtime</i>: the simulated ticks it has
+ * spent running, scaled down by its weight. The ready queue always runs the
+ * thread that has had the least virtual runtime, so over time each thread
+ * gets CPU in proportion to its weight. Weights follow the
+ * <tt>PriorityScheduler</tt> priorities: priority 1 has weight 1024, and each
+ * step up or down multiplies or divides it by 1.25.
+ * 
+ * <p>
+ * Threads that return the same <tt>getSchedulingGroup()</tt> (for example,
+ * all the <tt>UThread</tt>s of one <tt>UserProcess</tt>) are scheduled as a
+ * group: the ready queue first picks the group with the least virtual
+ * runtime, then the thread within it, and each group has the weight of one
+ * default-priority thread. A process with many threads therefore gets the
+ * same share as a process with one. A thread with no group is a group of
+ * its own, with its own weight.
+ * 
+ * <p>
+ * Runnable groups and threads are kept in balanced trees ordered by virtual
+ * runtime. A thread that wakes up is placed no more than one time slice
+ * behind the least virtual runtime in its tree, so sleeping does not bank
+ * an unbounded amount of CPU. Queues other than the ready queue simply hand
+ * out the waiting thread with the least virtual runtime. Priority is not
+ * donated.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+	}
+
+	/**
+	 * Allocate a new queue that hands out threads by virtual runtime.
+	 * 
+	 * @param transferPriority ignored.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, which charges threads for the time they run
+	 * and shares the CPU between scheduling groups.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new ReadyQueue();
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum
+				&& priority <= PriorityScheduler.priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == PriorityScheduler.priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == PriorityScheduler.priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The weight of a default-priority thread, and of every group.
+	 */
+	public static final int defaultWeight = 1024;
+
+	/**
+	 * The weight of each priority, from <tt>priorityMinimum</tt> to
+	 * <tt>priorityMaximum</tt>.
+	 */
+	private static final int[] weights = {819, 1024, 1280, 1600, 2000, 2500,
+			3125, 3906};
+
+	/**
+	 * How far behind the least virtual runtime a waking thread or group may
+	 * be placed.
+	 */
+	private static final long sleeperCredit = Stats.TimerTicks;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return the group the specified thread is scheduled in.
+	 */
+	private Group getGroup(ThreadState state) {
+		if (state.group == null) {
+			Object key = state.thread.getSchedulingGroup();
+			if (key == null) {
+				state.group = new Group(state);
+			}
+			else {
+				state.group = groups.get(key);
+				if (state.group == null) {
+					state.group = new Group(null);
+					groups.put(key, state.group);
+				}
+			}
+		}
+
+		return state.group;
+	}
+
+	private static long nextOrder = 0;
+
+	/** Ties in virtual runtime go to whoever was queued first. */
+	private static final Comparator<Entity> byRuntime = new Comparator<Entity>() {
+		public int compare(Entity a, Entity b) {
+			if (a.vruntime != b.vruntime)
+				return (a.vruntime < b.vruntime) ? -1 : 1;
+
+			return Long.compare(a.order, b.order);
+		}
+	};
+
+	/**
+	 * Something that accumulates virtual runtime: a thread or a group.
+	 */
+	private static abstract class Entity {
+		abstract int weight();
+
+		/**
+		 * Charge this entity for <i>ticks</i> of real running time.
+		 */
+		void charge(long ticks) {
+			vruntime += ticks * defaultWeight / weight();
+		}
+
+		/**
+		 * Place an entity that is joining a tree no further than one time
+		 * slice behind the least virtual runtime there, and give it a place
+		 * in line behind entities with the same runtime.
+		 */
+		void place(long minVruntime) {
+			vruntime = Math.max(vruntime, minVruntime - sleeperCredit);
+			order = nextOrder++;
+		}
+
+		long vruntime = 0;
+
+		long order;
+	}
+
+	/**
+	 * A group of threads that share one slice of the CPU.
+	 */
+	private static class Group extends Entity {
+		/**
+		 * @param solo the only thread in this group, or <tt>null</tt> if the
+		 * group has the default weight.
+		 */
+		Group(ThreadState solo) {
+			this.solo = solo;
+		}
+
+		int weight() {
+			return (solo != null) ? solo.weight() : defaultWeight;
+		}
+
+		ThreadState solo;
+
+		/** The group's threads that are ready to run. */
+		TreeSet<Entity> ready = new TreeSet<Entity>(byRuntime);
+
+		/** The least virtual runtime of any thread run from this group. */
+		long minVruntime = 0;
+	}
+
+	/**
+	 * The queue of threads ready to run.
+	 */
+	protected class ReadyQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Group group = getGroup(state);
+
+			// a yielding thread is charged before it goes back in the tree
+			if (state == running)
+				stopRunning();
+
+			if (group.ready.isEmpty() && group != runningGroup) {
+				group.place(minVruntime);
+				runnableGroups.add(group);
+			}
+
+			state.place(group.minVruntime);
+			group.ready.add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			getGroup(state);
+			startRunning(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (running != null)
+				stopRunning();
+
+			if (runnableGroups.isEmpty())
+				return null;
+
+			Group group = (Group) runnableGroups.pollFirst();
+			minVruntime = Math.max(minVruntime, group.vruntime);
+
+			ThreadState state = (ThreadState) group.ready.pollFirst();
+			group.minVruntime = Math.max(group.minVruntime, state.vruntime);
+
+			// the group stays in the tree while others of its threads wait
+			if (!group.ready.isEmpty())
+				runnableGroups.add(group);
+
+			startRunning(state);
+			return state.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Entity entity : runnableGroups) {
+				for (Entity waiter : ((Group) entity).ready)
+					System.out.print(((ThreadState) waiter).thread + "("
+							+ waiter.vruntime + ") ");
+			}
+		}
+
+		private void startRunning(ThreadState state) {
+			running = state;
+			runningGroup = state.group;
+			startedAt = Machine.timer().getTime();
+		}
+
+		/**
+		 * Charge the running thread and its group for the time since it was
+		 * dispatched. The group is re-sorted if it is in the tree.
+		 */
+		private void stopRunning() {
+			long ticks = Machine.timer().getTime() - startedAt;
+			Group group = runningGroup;
+
+			running.charge(ticks);
+
+			boolean queued = !group.ready.isEmpty();
+			if (queued)
+				runnableGroups.remove(group);
+			group.charge(ticks);
+			if (queued)
+				runnableGroups.add(group);
+
+			running = null;
+			runningGroup = null;
+		}
+
+		/** The groups with threads ready to run. */
+		private TreeSet<Entity> runnableGroups = new TreeSet<Entity>(byRuntime);
+
+		/** The least virtual runtime of any group that has run. */
+		private long minVruntime = 0;
+
+		private ThreadState running = null;
+
+		private Group runningGroup = null;
+
+		private long startedAt;
+	}
+
+	/**
+	 * A queue that hands out the waiting thread with the least virtual
+	 * runtime.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			// a blocking thread is charged before it goes in the tree, since
+			// its place there must not change while it waits
+			if (readyQueue != null && state == readyQueue.running)
+				readyQueue.stopRunning();
+
+			state.order = nextOrder++;
+			waiters.add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waiters.isEmpty())
+				return null;
+
+			return ((ThreadState) waiters.pollFirst()).thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Entity waiter : waiters)
+				System.out.print(((ThreadState) waiter).thread + " ");
+		}
+
+		private TreeSet<Entity> waiters = new TreeSet<Entity>(byRuntime);
+	}
+
+	/**
+	 * The scheduling state of a thread: its priority, virtual runtime, and
+	 * group.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState extends Entity {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		int weight() {
+			return weights[priority - PriorityScheduler.priorityMinimum];
+		}
+
+		/**
+		 * Set the priority, and so the weight, of the associated thread. A
+		 * thread waiting in a tree keeps its place; the new weight applies to
+		 * the time it runs from now on.
+		 * 
+		 * @param priority the new priority.
+		 */
+		public void setPriority(int priority) {
+			this.priority = priority;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The priority of the associated thread. */
+		protected int priority = PriorityScheduler.priorityDefault;
+
+		/** The group the thread is scheduled in, once known. */
+		Group group = null;
+	}
+
+	/** The ready queue, which charges the running thread. */
+	private ReadyQueue readyQueue = null;
+
+	/** The group of each scheduling group key that has been seen. */
+	private WeakHashMap<Object, Group> groups = new WeakHashMap<Object, Group>();
+
+	/**
+	 * Check that a group of four threads gets the same CPU time as a lone
+	 * thread, and that a higher priority gets a proportionally larger share.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof FairScheduler))
+			return;
+
+		final Object process = new Object();
+		final boolean done[] = {false};
+		final long ran[] = new long[7];
+
+		KThread threads[] = new KThread[ran.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			Runnable spin = new Runnable() {
+				public void run() {
+					// each pass costs one kernel tick of this thread's time
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+						ran[index] += Stats.KernelTick;
+					}
+				}
+			};
+
+			// threads 0-3 share a group; 4 and 5 are alone; 6 has priority 3
+			if (i < 4) {
+				threads[i] = new KThread(spin) {
+					public Object getSchedulingGroup() {
+						return process;
+					}
+				};
+			}
+			else {
+				threads[i] = new KThread(spin);
+			}
+			threads[i].setName("spinner " + i);
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(threads[6], 3);
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+
+		ThreadedKernel.alarm.waitUntil(500000);
+		done[0] = true;
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		long group = ran[0] + ran[1] + ran[2] + ran[3];
+		System.out.println("FairScheduler: group of 4 ran " + group
+				+ " ticks, lone threads " + ran[4] + " and " + ran[5]
+				+ ", priority 3 thread " + ran[6]);
+
+		Lib.assertTrue(Math.abs(group - ran[4]) < ran[4] / 10);
+		Lib.assertTrue(Math.abs(ran[5] - ran[4]) < ran[4] / 10);
+		Lib.assertTrue(Math.abs(ran[6] * 1024 - ran[4] * 1600) < ran[4] * 1600 / 10);
+
+		handoffTest();
+	}
+
+	/**
+	 * Check that threads blocked on a lock, and then on a semaphore, are
+	 * handed off in order of the virtual runtime they had when they blocked,
+	 * and that none is lost.
+	 */
+	private static void handoffTest() {
+		final FairScheduler scheduler = (FairScheduler) ThreadedKernel.scheduler;
+		final Lock lock = new Lock();
+		final Semaphore semaphore = new Semaphore(0);
+		final int blocked[] = {0};
+		final ArrayList<KThread> lockOrder = new ArrayList<KThread>();
+		final ArrayList<KThread> semaphoreOrder = new ArrayList<KThread>();
+
+		final KThread threads[] = new KThread[6];
+		for (int i = 0; i < threads.length; i++) {
+			// equal work, so their order turns on the last slice each ran
+			final int passes = 300;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					spin(passes);
+					blocked[0]++;
+					lock.acquire();
+					lockOrder.add(KThread.currentThread());
+					lock.release();
+
+					spin(passes);
+					blocked[0]++;
+					semaphore.P();
+					semaphoreOrder.add(KThread.currentThread());
+				}
+			}).setName("waiter " + i);
+		}
+
+		lock.acquire();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+
+		// nothing ticks between a count and the block that follows it
+		while (blocked[0] < threads.length)
+			KThread.yield();
+		List<KThread> expected = scheduler.byWaitingRuntime(threads);
+		lock.release();
+
+		while (blocked[0] < 2 * threads.length)
+			KThread.yield();
+		Lib.assertTrue(lockOrder.equals(expected));
+
+		expected = scheduler.byWaitingRuntime(threads);
+		// one at a time, so the order they run in is the order they woke in
+		for (int i = 0; i < threads.length; i++) {
+			semaphore.V();
+			while (semaphoreOrder.size() <= i)
+				KThread.yield();
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+		Lib.assertTrue(semaphoreOrder.equals(expected));
+
+		System.out.println("FairScheduler: lock and semaphore handoffs in order");
+	}
+
+	/**
+	 * Run for <i>passes</i> kernel ticks, letting the timer preempt.
+	 */
+	private static void spin(int passes) {
+		for (int i = 0; i < passes; i++) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	/**
+	 * Sort blocked threads by the place their virtual runtime gives them in
+	 * a wait queue.
+	 */
+	private List<KThread> byWaitingRuntime(KThread[] threads) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		TreeSet<Entity> sorted = new TreeSet<Entity>(byRuntime);
+		for (int i = 0; i < threads.length; i++)
+			sorted.add(getThreadState(threads[i]));
+
+		ArrayList<KThread> order = new ArrayList<KThread>();
+		for (Entity entity : sorted)
+			order.add(((ThreadState) entity).thread);
+
+		Machine.interrupt().restore(intStatus);
+		return order;
+	}
+}
@@ -1,12 +1,21 @@
 package nachos.threads;
 
 import java.util.*;
+import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
 import nachos.machine.*;
 
 /**
  * A <i>Future</i> is a convenient mechanism for using asynchonous
  * operations.
+ *
+ * <p>
+ * Functions run on a fixed pool of kernel worker threads, started the first
+ * time a <i>Future</i> is created. The number of workers is
+ * <tt>Future.workers</tt> in <tt>nachos.conf</tt>. Threads blocked in
+ * <i>get</i> are all woken together when the result arrives, and callbacks
+ * registered with <i>onComplete</i> run on the worker that produced it.
  */
 public class Future {
     /**
@@ -15,7 +24,19 @@ public class Future {
      * particular, the constructor should not block as a consequence
      * of invoking <i>function</i>.
      */
-    public Future (IntSupplier function) {
+    public Future (final IntSupplier function) {
+	submit(new Runnable() {
+		public void run() {
+		    complete(function.getAsInt());
+		}
+	    });
+    }
+
+    /**
+     * Instantiate a <i>Future</i> that is completed by another
+     * <i>Future</i> rather than by a function of its own.
+     */
+    private Future () {
     }
 
     /**
@@ -28,6 +49,230 @@ public class Future {
      * threads), and it should always return the same value.
      */
     public int get () {
-	return -1;
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!done) {
+	    if (waitQueue == null)
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return value;
+    }
+
+    /**
+     * Return whether the result is available, so that <i>get</i> would
+     * not block.
+     */
+    public boolean isDone () {
+	return done;
+    }
+
+    /**
+     * Register a <i>callback</i> to receive the result.  If the result
+     * is already available, the callback runs at once in the calling
+     * thread; otherwise it runs in the worker that completes this
+     * <i>Future</i>, after the threads blocked in <i>get</i> are woken.
+     */
+    public void onComplete (IntConsumer callback) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!done) {
+	    if (callbacks == null)
+		callbacks = new ArrayList<IntConsumer>();
+	    callbacks.add(callback);
+	    Machine.interrupt().restore(intStatus);
+	    return;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	callback.accept(value);
+    }
+
+    /**
+     * Return a new <i>Future</i> whose result is <i>function</i>
+     * applied to the result of this one.  The function runs on a
+     * worker once this <i>Future</i> completes; this call never
+     * blocks.
+     */
+    public Future thenApply (final IntUnaryOperator function) {
+	final Future next = new Future();
+
+	onComplete(new IntConsumer() {
+		public void accept(final int result) {
+		    submit(new Runnable() {
+			    public void run() {
+				next.complete(function.applyAsInt(result));
+			    }
+			});
+		}
+	    });
+
+	return next;
+    }
+
+    /**
+     * Record the result, wake every thread blocked in <i>get</i>, and
+     * run the callbacks.
+     */
+    private void complete (int result) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!done);
+	value = result;
+	done = true;
+
+	if (waitQueue != null) {
+	    KThread thread;
+	    while ((thread = waitQueue.nextThread()) != null)
+		thread.ready();
+	    waitQueue = null;
+	}
+
+	List<IntConsumer> toRun = callbacks;
+	callbacks = null;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (toRun != null) {
+	    for (IntConsumer callback : toRun)
+		callback.accept(result);
+	}
+    }
+
+    /**
+     * Queue a task for the worker pool, starting the pool if this is
+     * the first task.
+     */
+    private static void submit (Runnable task) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (tasks == null)
+	    startWorkers();
+	tasks.add(task);
+
+	Machine.interrupt().restore(intStatus);
+
+	available.V();
+    }
+
+    private static void startWorkers () {
+	tasks = new LinkedList<Runnable>();
+	available = new Semaphore(0);
+
+	int workers = Config.getInteger("Future.workers", 4);
+	Lib.assertTrue(workers > 0);
+
+	for (int i = 0; i < workers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			while (true) {
+			    available.P();
+
+			    boolean intStatus = Machine.interrupt().disable();
+			    Runnable task = tasks.removeFirst();
+			    Machine.interrupt().restore(intStatus);
+
+			    task.run();
+			}
+		    }
+		}).setName("future worker " + i).fork();
+	}
+    }
+
+    private boolean done = false;
+
+    private int value;
+
+    /** Threads blocked in <i>get</i>, created by the first of them. */
+    private ThreadQueue waitQueue = null;
+
+    private List<IntConsumer> callbacks = null;
+
+    /** Tasks waiting for a worker, oldest first. */
+    private static LinkedList<Runnable> tasks = null;
+
+    /** Counts the tasks in <tt>tasks</tt>. */
+    private static Semaphore available;
+
+    /**
+     * Fan work out across the workers, block several threads on one
+     * result, and chain results.
+     */
+    public static void selfTest () {
+	// sums of 0..n-1, with a yield now and then so the workers interleave
+	Future[] sums = new Future[8];
+	for (int i = 0; i < sums.length; i++) {
+	    final int n = 1000 * (i + 1);
+	    sums[i] = new Future(new IntSupplier() {
+		    public int getAsInt() {
+			int sum = 0;
+			for (int j = 0; j < n; j++) {
+			    sum += j;
+			    if (j % 100 == 0)
+				KThread.yield();
+			}
+			return sum;
+		    }
+		});
+	}
+	for (int i = 0; i < sums.length; i++) {
+	    int n = 1000 * (i + 1);
+	    Lib.assertTrue(sums[i].get() == n * (n - 1) / 2);
+	    Lib.assertTrue(sums[i].isDone());
+	}
+
+	// several threads wait on a result that is held back by a semaphore
+	final Semaphore release = new Semaphore(0);
+	final Future gated = new Future(new IntSupplier() {
+		public int getAsInt() {
+		    release.P();
+		    return 42;
+		}
+	    });
+	final int[] seen = new int[5];
+	KThread[] getters = new KThread[seen.length];
+	for (int i = 0; i < getters.length; i++) {
+	    final int which = i;
+	    getters[i] = new KThread(new Runnable() {
+		    public void run() {
+			seen[which] = gated.get();
+		    }
+		}).setName("getter " + i);
+	    getters[i].fork();
+	}
+	KThread.yield();
+	Lib.assertTrue(!gated.isDone());
+	release.V();
+	for (int i = 0; i < getters.length; i++) {
+	    getters[i].join();
+	    Lib.assertTrue(seen[i] == 42);
+	}
+
+	// chaining, and a callback on a future that is already done
+	Future chained = gated.thenApply(new IntUnaryOperator() {
+		public int applyAsInt(int x) {
+		    return x + 1;
+		}
+	    }).thenApply(new IntUnaryOperator() {
+		public int applyAsInt(int x) {
+		    return x * 2;
+		}
+	    });
+	Lib.assertTrue(chained.get() == 86);
+
+	final int[] called = {0};
+	chained.onComplete(new IntConsumer() {
+		public void accept(int x) {
+		    called[0] = x;
+		}
+	    });
+	Lib.assertTrue(called[0] == 86);
+
+	System.out.println("Future: pool, bulk wake-up and chaining tests passed");
     }
 }
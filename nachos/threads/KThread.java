@@ -51,15 +51,16 @@ public class KThread {
 
 	/**
 	 * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
-	 * create an idle thread as well.
+	 * create an idle thread as well. Other threads get their TCB when they
+	 * are forked.
 	 */
 	public KThread() {
-		if (currentThread != null) {
-			tcb = new TCB();
-		} else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+		if (currentThread == null) {
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
+			tcbPool = new TCB[Config.getInteger("KThread.poolSize", 0)];
+
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
@@ -153,11 +154,20 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		tcb.start(new Runnable() {
-			public void run() {
-				runThread();
-			}
-		});
+		if (numPooled > 0) {
+			// the pooled TCB's Java thread picks this thread up when it is
+			// first run
+			tcb = tcbPool[--numPooled];
+			tcbPool[numPooled] = null;
+		}
+		else {
+			tcb = new TCB();
+			tcb.start(new Runnable() {
+				public void run() {
+					runThread();
+				}
+			});
+		}
 
 		ready();
 
@@ -167,6 +177,14 @@ public class KThread {
 	private void runThread() {
 		begin();
 		target.run();
+
+		while (recycle()) {
+			// a newly forked thread is now current on this TCB
+			Lib.debug(dbgThread, "Beginning thread: " + currentThread.toString());
+			Machine.interrupt().enable();
+			currentThread.target.run();
+		}
+
 		finish();
 	}
 
@@ -200,13 +218,54 @@ public class KThread {
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
 
+		markFinished();
+
+		sleep();
+	}
+
+	/**
+	 * Finish the current thread, whose <tt>run</tt> method has returned, and
+	 * park its TCB in the pool instead of destroying it, if the pool has room.
+	 * Returns once another thread has been forked onto the TCB and has been
+	 * dispatched, with interrupts disabled.
+	 * 
+	 * @return <tt>true</tt> if the TCB was pooled and now runs another thread,
+	 * <tt>false</tt> if the pool is full and the thread must be destroyed.
+	 */
+	private static boolean recycle() {
+		Machine.interrupt().disable();
+
+		if (numPooled == tcbPool.length)
+			return false;
+
+		Lib.debug(dbgThread, "Recycling thread: " + currentThread.toString());
+
+		Machine.autoGrader().finishingCurrentThread();
+
+		currentThread.tcb.recycle();
+		tcbPool[numPooled++] = currentThread.tcb;
+		currentThread.tcb = null;
+
+		markFinished();
+
+		sleep();
+
+		return true;
+	}
+
+	/**
+	 * Mark the current thread finished and wake the thread joining it.
+	 */
+	private static void markFinished() {
 		currentThread.status = statusFinished;
 
+		ThreadedKernel.scheduler.threadFinished(currentThread);
+
 		if (currentThread.callingThread != null) {
+			if (currentThread.joinQueue != null)
+				currentThread.joinQueue.nextThread();
 			currentThread.callingThread.ready();
 		}
-
-		sleep();
 	}
 
 	/**
@@ -271,8 +330,14 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+
+			// a thread other than the running one now wants the CPU
+			if (this != currentThread && ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReady();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -299,6 +364,12 @@ public class KThread {
 			// then B waits inside of join until A finishes;
 			this.callingThread = currentThread;
 			boolean status = Machine.interrupt().disable();
+
+			// wait on a queue A owns, so B's priority is donated to A
+			joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			joinQueue.acquire(this);
+			joinQueue.waitForAccess(currentThread);
+
 			currentThread.sleep(); // in sleep we need to disable interrupt first!!!!!!
 			Machine.interrupt().restore(status);
 		}
@@ -312,6 +383,26 @@ public class KThread {
 
 
 
+	/**
+	 * Return the group this thread belongs to for scheduling purposes.
+	 * Schedulers that share the CPU between groups treat all threads of a
+	 * group as one unit. By default a thread belongs to no group.
+	 * 
+	 * @return the thread's scheduling group, or <tt>null</tt>.
+	 */
+	public Object getSchedulingGroup() {
+		return null;
+	}
+
+	/**
+	 * Tests whether any thread is waiting in the ready queue.
+	 * 
+	 * @return <tt>true</tt> if some thread is ready to run.
+	 */
+	static boolean hasReadyThreads() {
+		return numReady > 0;
+	}
+
 	/**
 	 * Create the idle thread. Whenever there are no threads ready to be run,
 	 * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
@@ -320,14 +411,27 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * If <tt>KThread.idleFastForward</tt> is set, the idle thread skips
+	 * simulated time ahead to the next pending interrupt instead of ticking
+	 * its way there.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		final boolean fastForward = Config.getBoolean(
+				"KThread.idleFastForward", false);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					// nothing can become ready until the next interrupt
+					if (fastForward && !hasReadyThreads())
+						Machine.interrupt().idle();
+
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -345,6 +449,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else if (--numReady > 0 && ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.threadReady();
 
 		nextThread.run();
 	}
@@ -453,6 +559,18 @@ public class KThread {
 	// \\\\\\\Can it be -1?
 	long alarmWakeTime = -1;
 
+	/** This thread's entry in the alarm's timing wheel, if it has slept. */
+	Alarm.Waiter alarmWaiter = null;
+
+	/** This thread's handle for waiting on a <tt>Condition2</tt>. */
+	Condition2.Waiter conditionWaiter = null;
+
+	/** The value a <tt>Rendezvous</tt> partner left for this thread. */
+	int exchangeValue;
+
+	/** The number of units this thread waits for in <tt>Semaphore.P()</tt>. */
+	int semaphoreUnits;
+
 	private TCB tcb;
 
 	/**
@@ -466,14 +584,29 @@ public class KThread {
 
 	private KThread callingThread = null;
 
+	/** The queue the joining thread waits on, donating priority to this one. */
+	private ThreadQueue joinQueue = null;
+
 	private static ThreadQueue readyQueue = null;
 
+	/** Number of threads waiting in the ready queue. */
+	private static int numReady = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
 
+	/**
+	 * TCBs whose threads have finished, parked so that <tt>fork()</tt> can
+	 * reuse them instead of starting a new Java thread. Its length is
+	 * <tt>KThread.poolSize</tt>.
+	 */
+	private static TCB[] tcbPool;
+
+	private static int numPooled = 0;
+
 
 	// What we added
 
@@ -570,6 +703,63 @@ public class KThread {
         // Lib.assertTrue((child1.status == statusFinished), " Expected child1 to be finished.");
     }
 
+	/**
+	 * Measure context switches per second: two threads hand the CPU back and
+	 * forth with <tt>yield()</tt>. Run it with and without
+	 * <tt>TCB.virtualThreads</tt> to compare the two kinds of Java thread.
+	 */
+	public static void switchBenchmark() {
+		final int rounds = 20000;
+		Runnable pingPong = new Runnable() {
+			public void run() {
+				for (int i = 0; i < rounds; i++)
+					KThread.yield();
+			}
+		};
+
+		KThread ping = new KThread(pingPong).setName("ping");
+		KThread pong = new KThread(pingPong).setName("pong");
+
+		long start = System.nanoTime();
+		ping.fork();
+		pong.fork();
+		ping.join();
+		pong.join();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("switchBenchmark: "
+				+ (2L * rounds * 1000000000L / elapsed)
+				+ " context switches per second (virtualThreads "
+				+ Config.getBoolean("TCB.virtualThreads", false) + ")");
+	}
+
+	/**
+	 * Measure the cost of forking and joining short-lived threads, one at a
+	 * time. With <tt>KThread.poolSize</tt> above zero, all but the first reuse
+	 * a pooled TCB.
+	 */
+	public static void forkBenchmark() {
+		final int forks = 2000;
+		final int counter[] = {0};
+		Runnable work = new Runnable() {
+			public void run() {
+				counter[0]++;
+			}
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < forks; i++) {
+			KThread thread = new KThread(work).setName("worker " + i);
+			thread.fork();
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Lib.assertTrue(counter[0] == forks);
+		System.out.println("forkBenchmark: " + (elapsed / forks)
+				+ " ns per fork and join (poolSize " + tcbPool.length + ")");
+	}
+
 	/**
 	 * Tests whether this module is working.
 	 */
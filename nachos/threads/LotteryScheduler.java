@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +23,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps its waiters' ticket counts in a Fenwick (binary indexed)
+ * tree, so holding a lottery, adding or removing a waiter, and changing a
+ * waiter's tickets all take O(log n) time. Like priority donation, ticket
+ * transfers are applied incrementally: a queue remembers how many tickets it
+ * currently passes to its owner and only forwards the difference.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +46,506 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).getEffectiveTickets(),
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 * 
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that picks threads by lottery.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public void transferAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState winner = pickNextThread();
+			if (winner == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(winner);
+			winner.waitingOn = null;
+			updateDonation();
+			winner.acquire(this);
+
+			return winner.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads and return the winner,
+		 * without removing it from this queue.
+		 * 
+		 * @return the winning thread's state, or <tt>null</tt> if no thread
+		 * is waiting.
+		 */
+		protected LotteryState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			long ticket;
+			if (total <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) total);
+			else
+				ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// descend the tree to the first slot whose prefix sum exceeds ticket
+			int slot = 0;
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				int next = slot + step;
+				if (next <= capacity && tree[next] <= ticket) {
+					slot = next;
+					ticket -= tree[next];
+				}
+			}
+
+			return waiters[slot + 1];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 1; slot <= capacity; slot++) {
+				if (waiters[slot] != null)
+					System.out.print(waiters[slot].thread + "("
+							+ weights[slot] + ") ");
+			}
+		}
+
+		void insert(LotteryState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = free[--numFree];
+			waiters[slot] = state;
+			state.slot = slot;
+			numWaiting++;
+
+			add(slot, state.getEffectiveTickets());
+		}
+
+		void remove(LotteryState state) {
+			int slot = state.slot;
+
+			add(slot, -weights[slot]);
+			waiters[slot] = null;
+			free[numFree++] = slot;
+			numWaiting--;
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the waiter in <i>slot</i>.
+		 */
+		void add(int slot, long delta) {
+			weights[slot] += delta;
+			total += delta;
+
+			for (int i = slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int oldCapacity = capacity;
+			capacity *= 2;
+
+			waiters = Arrays.copyOf(waiters, capacity + 1);
+			weights = Arrays.copyOf(weights, capacity + 1);
+			free = Arrays.copyOf(free, capacity);
+			for (int slot = capacity; slot > oldCapacity; slot--)
+				free[numFree++] = slot;
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += weights[i];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/**
+		 * Give this queue to a new owner, taking its donated tickets back from
+		 * the old owner and giving them to the new one.
+		 */
+		void setOwner(LotteryState newOwner) {
+			if (owner != null && donated != 0)
+				owner.changeReceived(-donated);
+
+			owner = newOwner;
+			donated = 0;
+			updateDonation();
+		}
+
+		/**
+		 * Pass any change in the waiting threads' total tickets on to the
+		 * owner.
+		 */
+		void updateDonation() {
+			if (!transferPriority || owner == null || donated == total)
+				return;
+
+			long delta = total - donated;
+			donated = total;
+			owner.changeReceived(delta);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread that last acquired this queue, if any. */
+		LotteryState owner = null;
+
+		/** The number of tickets this queue currently gives its owner. */
+		long donated = 0;
+
+		/** The sum of the waiting threads' effective tickets. */
+		long total = 0;
+
+		private int numWaiting = 0;
+
+		private int capacity = initialCapacity;
+
+		/** A Fenwick tree over <tt>weights</tt>; both are indexed from 1. */
+		private long[] tree = new long[initialCapacity + 1];
+
+		private long[] weights = new long[initialCapacity + 1];
+
+		private LotteryState[] waiters = new LotteryState[initialCapacity + 1];
+
+		private int[] free = initialFreeSlots();
+
+		private int numFree = initialCapacity;
+	}
+
+	private static int[] initialFreeSlots() {
+		int[] free = new int[initialCapacity];
+		for (int i = 0; i < initialCapacity; i++)
+			free[i] = initialCapacity - i;
+		return free;
+	}
+
+	private static final int initialCapacity = 8;
+
+	/**
+	 * The lottery state of a thread: its own tickets, the tickets donated to
+	 * it, and the queue it is waiting on, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+			this.tickets = priorityDefault;
+		}
+
+		/**
+		 * Return the number of tickets this thread holds, counting the tickets
+		 * donated to it.
+		 * 
+		 * @return the effective number of tickets.
+		 */
+		public long getEffectiveTickets() {
+			return tickets + received;
+		}
+
+		/**
+		 * Set this thread's own number of tickets.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			changeEffective(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the thread is now waiting on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.insert(this);
+			waitQueue.updateDonation();
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the thread has acquired.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			waitQueue.setOwner(this);
+		}
+
+		void changeReceived(long delta) {
+			received += delta;
+
+			changeEffective(delta);
+		}
+
+		/**
+		 * Pass a change in the effective tickets on to the queue this thread
+		 * waits on, and from there to that queue's owner.
+		 */
+		private void changeEffective(long delta) {
+			if (delta == 0 || waitingOn == null)
+				return;
+
+			waitingOn.add(slot, delta);
+			waitingOn.updateDonation();
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The thread's own tickets. */
+		protected int tickets;
+
+		/** The tickets donated to the thread by the queues it owns. */
+		protected long received = 0;
+
+		/** The queue this thread is waiting on, if any. */
+		LotteryQueue waitingOn = null;
+
+		/** This thread's slot in <tt>waitingOn</tt>. */
+		int slot;
+	}
+
+	/**
+	 * Test that lotteries follow the ticket counts and that tickets add up
+	 * through locks and joins, then time draws on large queues.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof LotteryScheduler))
+			return;
+
+		final LotteryScheduler scheduler = (LotteryScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		// draws are proportional to tickets
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread threads[] = new KThread[4];
+		int wins[] = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("t" + i);
+			scheduler.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+		}
+		for (int draw = 0; draw < 10000; draw++) {
+			KThread winner = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (winner == threads[i])
+					wins[i]++;
+			}
+			queue.waitForAccess(winner);
+		}
+		for (int i = 0; i < threads.length; i++)
+			Lib.assertTrue(Math.abs(wins[i] - 1000 * (i + 1)) < 300);
+
+		// tickets add up along a chain of locks
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread d = new KThread().setName("d");
+		scheduler.setPriority(a, 5);
+		scheduler.setPriority(b, 10);
+		scheduler.setPriority(c, 20);
+		scheduler.setPriority(d, 40);
+
+		ThreadQueue lock1 = scheduler.newThreadQueue(true);
+		ThreadQueue lock2 = scheduler.newThreadQueue(true);
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(c);
+		lock1.waitForAccess(d);
+		lock2.waitForAccess(a);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 65);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 75);
+
+		scheduler.setPriority(d, 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 36);
+
+		KThread next = lock2.nextThread();
+		Lib.assertTrue(next == a);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 10);
+		// whichever of c and d wins lock1 receives the other's tickets
+		next = lock1.nextThread();
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 5);
+		Lib.assertTrue(scheduler.getEffectivePriority(next) == 21);
+
+		scheduler.setPriority(KThread.currentThread(), 7);
+		Machine.interrupt().restore(intStatus);
+
+		// a joining thread lends its tickets to the thread it joins
+		KThread child = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				Lib.assertTrue(scheduler.getEffectivePriority() == 8);
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("child");
+		intStatus = Machine.interrupt().disable();
+		child.fork();
+		child.join();
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("LotteryScheduler: lottery and transfer tests passed");
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(priorityDefault);
+		Machine.interrupt().restore(intStatus);
+
+		lotteryBenchmark(100);
+		lotteryBenchmark(1000);
+		lotteryBenchmark(10000);
+	}
+
+	/**
+	 * Time draws on a queue of <i>numThreads</i> waiters with random ticket
+	 * counts, each winner rejoining the queue with a new count. The threads
+	 * are never forked, so the count is not limited by the number of TCBs.
+	 */
+	public static void lotteryBenchmark(int numThreads) {
+		LotteryScheduler scheduler = (LotteryScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread().setName("player " + i);
+			scheduler.setPriority(thread, 1 + Lib.random(1000));
+			queue.waitForAccess(thread);
+		}
+
+		int draws = 200000;
+		long start = System.nanoTime();
+		for (int i = 0; i < draws; i++) {
+			KThread winner = queue.nextThread();
+			scheduler.setPriority(winner, 1 + Lib.random(1000));
+			queue.waitForAccess(winner);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("lotteryBenchmark: " + numThreads + " waiters, "
+				+ (elapsed / draws) + " ns per draw");
+
+		Machine.interrupt().restore(intStatus);
 	}
 }
@@ -0,0 +1,416 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A multi-level feedback queue scheduler.
+ * 
+ * <p>
+ * Threads are kept at one of <tt>numLevels</tt> levels, level 0 being the
+ * most favoured. Every queue hands out the thread at the best level, and
+ * among those the one that has waited longest. A thread at level <i>L</i> may
+ * run for 2<sup><i>L</i></sup> timer interrupts before it is preempted; a
+ * thread that uses its whole quantum is demoted one level. A thread that
+ * blocks (on a <tt>Semaphore</tt>, <tt>Lock</tt>, <tt>Condition2</tt>, the
+ * alarm, or anything else) is promoted one level when it is woken, so
+ * interactive threads such as console readers stay near the top while
+ * CPU-bound threads sink.
+ * 
+ * <p>
+ * To prevent starvation, every <tt>boostInterval</tt> timer interrupts all
+ * threads are moved back to level 0. The boost is applied lazily: a thread
+ * catches up the next time the scheduler looks at it, and a queue moves all
+ * its waiters to level 0, in arrival order, the next time it is used.
+ * 
+ * <p>
+ * This scheduler does not use priorities and does not donate through locks.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 * 
+	 * @param transferPriority ignored.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, remembering it so that timer interrupts can
+	 * tell whether a better thread is waiting.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new MLFQQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Charge the running thread for one timer interrupt, demoting it if it
+	 * has used its whole quantum, and start a new boost period when one is
+	 * due. The thread is preempted when its quantum is used up or a thread
+	 * at a better level is ready.
+	 */
+	public boolean timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++ticksSinceBoost >= boostInterval) {
+			ticksSinceBoost = 0;
+			boostEpoch++;
+		}
+
+		if (thread.schedulingState == null && readyQueue != null
+				&& !readyQueue.isEmpty())
+			return true;
+
+		ThreadState state = getThreadState(thread);
+		int level = state.getLevel();
+
+		if (++state.used >= quantum(level)) {
+			state.used = 0;
+			state.level = Math.min(level + 1, numLevels - 1);
+			return true;
+		}
+
+		return readyQueue != null && readyQueue.bestLevel() < level;
+	}
+
+	/**
+	 * Return the number of timer interrupts a thread at <i>level</i> may run
+	 * for before it is preempted.
+	 */
+	static int quantum(int level) {
+		return 1 << level;
+	}
+
+	/**
+	 * The number of levels.
+	 */
+	public static final int numLevels = 4;
+
+	/**
+	 * The number of timer interrupts between resets of every thread to level
+	 * 0.
+	 */
+	public static final int boostInterval = 50;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO per level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			// only a thread that blocked is put here by another thread
+			if (thread != KThread.currentThread())
+				state.promote();
+
+			catchUp();
+			state.waitingOn = this;
+			state.waitOrder = numWaits++;
+			append(state, state.getLevel());
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			catchUp();
+			if (levels == 0)
+				return null;
+
+			ThreadState state = heads[bestLevel()];
+			remove(state);
+			state.waitingOn = null;
+
+			return state.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState state = heads[level]; state != null; state = state.next)
+					System.out.print(state.thread + "(" + level + ") ");
+			}
+		}
+
+		boolean isEmpty() {
+			return levels == 0;
+		}
+
+		/**
+		 * Return the best level with a waiting thread, or <tt>numLevels</tt>
+		 * if no thread is waiting.
+		 */
+		int bestLevel() {
+			catchUp();
+			return (levels == 0) ? numLevels : Integer.numberOfTrailingZeros(levels);
+		}
+
+		/**
+		 * Apply any boost that happened since this queue was last used, moving
+		 * every waiter to level 0 in the order they arrived.
+		 */
+		private void catchUp() {
+			if (epoch == boostEpoch)
+				return;
+
+			epoch = boostEpoch;
+			if ((levels & ~1) == 0)
+				return;
+
+			int count = 0;
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState state = heads[level]; state != null; state = state.next)
+					count++;
+			}
+
+			ThreadState[] waiters = new ThreadState[count];
+			count = 0;
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState state = heads[level]; state != null; state = state.next)
+					waiters[count++] = state;
+				heads[level] = tails[level] = null;
+			}
+			levels = 0;
+
+			Arrays.sort(waiters, (a, b) -> Long.compare(a.waitOrder, b.waitOrder));
+			for (ThreadState state : waiters) {
+				state.getLevel();
+				append(state, 0);
+			}
+		}
+
+		private void append(ThreadState state, int level) {
+			state.queueLevel = level;
+			state.next = null;
+			state.prev = tails[level];
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].next = state;
+			tails[level] = state;
+
+			levels |= 1 << level;
+		}
+
+		private void remove(ThreadState state) {
+			int level = state.queueLevel;
+
+			if (state.prev == null)
+				heads[level] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+			state.prev = state.next = null;
+
+			if (heads[level] == null)
+				levels &= ~(1 << level);
+		}
+
+		/** The boost period this queue last caught up with. */
+		private int epoch = boostEpoch;
+
+		/** Bit <i>L</i> is set if some thread waits at level <i>L</i>. */
+		private int levels = 0;
+
+		private ThreadState[] heads = new ThreadState[numLevels];
+
+		private ThreadState[] tails = new ThreadState[numLevels];
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of its
+	 * quantum it has used.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return the level of the associated thread, after applying any boost
+		 * it has missed.
+		 * 
+		 * @return the thread's level.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Move the thread up one level and give it a fresh quantum.
+		 */
+		void promote() {
+			level = Math.max(getLevel() - 1, 0);
+			used = 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the thread. */
+		protected int level = 0;
+
+		/** The number of timer interrupts used of the current quantum. */
+		protected int used = 0;
+
+		/** The boost period this state last caught up with. */
+		private int epoch = boostEpoch;
+
+		/** The queue this thread is waiting on, if any. */
+		MLFQQueue waitingOn = null;
+
+		/** When this thread started waiting, to keep each level FIFO. */
+		long waitOrder;
+
+		/** The level this thread is filed at in <tt>waitingOn</tt>. */
+		int queueLevel;
+
+		ThreadState prev = null, next = null;
+	}
+
+	private MLFQQueue readyQueue = null;
+
+	private int ticksSinceBoost = 0;
+
+	private int boostEpoch = 0;
+
+	private long numWaits = 0;
+
+	/**
+	 * Test demotion, promotion on wake-up, and the periodic boost on threads
+	 * that are never forked, then show how an interactive thread fares next
+	 * to CPU-bound ones.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+			return;
+
+		MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread hog = new KThread().setName("hog");
+		KThread sleeper = new KThread().setName("sleeper");
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		// the hog uses up one quantum at each level on its way down
+		for (int level = 0; level < numLevels - 1; level++) {
+			for (int i = 1; i < quantum(level); i++)
+				scheduler.timerInterrupt(hog);
+			Lib.assertTrue(scheduler.getThreadState(hog).getLevel() == level);
+			scheduler.timerInterrupt(hog);
+		}
+		Lib.assertTrue(scheduler.getThreadState(hog).getLevel() == numLevels - 1);
+
+		// a thread woken by another thread is promoted and goes first
+		scheduler.getThreadState(sleeper).level = 2;
+		queue.waitForAccess(hog);
+		queue.waitForAccess(sleeper);
+		Lib.assertTrue(scheduler.getThreadState(sleeper).getLevel() == 1);
+		Lib.assertTrue(queue.nextThread() == sleeper);
+		queue.waitForAccess(sleeper);
+
+		// a boost brings everyone back to level 0, in arrival order
+		scheduler.ticksSinceBoost = boostInterval - 1;
+		scheduler.timerInterrupt(KThread.currentThread());
+		Lib.assertTrue(queue.nextThread() == hog);
+		Lib.assertTrue(scheduler.getThreadState(hog).getLevel() == 0);
+		Lib.assertTrue(queue.nextThread() == sleeper);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("MLFQScheduler: demotion, promotion and boost tests passed");
+
+		responseTest();
+	}
+
+	/**
+	 * Run two CPU-bound threads next to one that sleeps briefly and then
+	 * needs the CPU, and report how long the sleeper waited to run after
+	 * each wake-up.
+	 */
+	private static void responseTest() {
+		final boolean done[] = {false};
+		Runnable spin = new Runnable() {
+			public void run() {
+				while (!done[0]) {
+					// burn simulated time without blocking
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		};
+
+		KThread hog1 = new KThread(spin).setName("hog1");
+		KThread hog2 = new KThread(spin).setName("hog2");
+		hog1.fork();
+		hog2.fork();
+
+		long worst = 0, sum = 0;
+		int rounds = 20;
+		for (int i = 0; i < rounds; i++) {
+			long wake = Machine.timer().getTime() + 1000;
+			ThreadedKernel.alarm.waitUntil(1000);
+			long delay = Machine.timer().getTime() - wake;
+			worst = Math.max(worst, delay);
+			sum += delay;
+		}
+
+		done[0] = true;
+		hog1.join();
+		hog2.join();
+
+		System.out.println("MLFQScheduler: interactive thread waited "
+				+ (sum / rounds) + " ticks on average, " + worst
+				+ " at worst, after each wake-up");
+	}
+}
@@ -0,0 +1,335 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers, or a single writer,
+ * hold it at once.
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or waits for the
+ * lock, then join the readers holding it.
+ * <li><tt>acquireWrite()</tt>: wait until nobody holds the lock, then hold it
+ * alone.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: a reader does not join the current readers while a
+ * writer is waiting, and a departing writer hands the lock to the next
+ * writer if there is one. Only when no writer waits are all waiting readers
+ * woken, together.
+ *
+ * <p>
+ * Waiting readers and writers sit on thread queues that transfer priority.
+ * Both queues are owned by one current holder: the writer, or one of the
+ * readers. When that reader releases the lock, the queues pass to another
+ * reader that still holds it, so a waiting thread always donates to a thread
+ * it is waiting for.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. Nobody holds it at first.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Atomically wait until no writer holds or waits for this lock, and then
+	 * hold it as a reader. The current thread must not already hold it.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && waitingWriters == 0) {
+			readers.add(thread);
+			if (readers.size() == 1) {
+				writeQueue.acquire(thread);
+				readQueue.acquire(thread);
+			}
+		}
+		else {
+			waitingReaders++;
+			readQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(readers.contains(thread));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock as a reader. The last reader to leave
+	 * hands the lock to a waiting writer.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		int index = readers.indexOf(thread);
+		Lib.assertTrue(index >= 0);
+		readers.remove(index);
+
+		if (!readers.isEmpty()) {
+			// the waiters' donation moves on to a reader still holding
+			if (index == 0)
+				setHolder(readers.get(0));
+		}
+		else if (waitingWriters > 0) {
+			grantWriter();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically wait until nobody holds this lock, and then hold it as the
+	 * only writer. The current thread must not already hold it.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && readers.isEmpty()) {
+			writer = thread;
+			writeQueue.acquire(thread);
+			readQueue.acquire(thread);
+		}
+		else {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock as the writer, handing it to the next
+	 * waiting writer, or else to every waiting reader.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(writer == KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (waitingWriters > 0) {
+			grantWriter();
+		}
+		else if (waitingReaders > 0) {
+			KThread thread;
+			while ((thread = readQueue.nextThread()) != null) {
+				readers.add(thread);
+				thread.ready();
+			}
+			waitingReaders = 0;
+
+			setHolder(readers.get(0));
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock, as a reader or a writer.
+	 *
+	 * @return <tt>true</tt> if the current thread holds this lock.
+	 */
+	public boolean isHeldByCurrentThread() {
+		KThread thread = KThread.currentThread();
+		return writer == thread || readers.contains(thread);
+	}
+
+	/**
+	 * Give the lock to the writer that has waited longest, or to the one the
+	 * scheduler prefers.
+	 */
+	private void grantWriter() {
+		writer = writeQueue.nextThread();
+		Lib.assertTrue(writer != null);
+		waitingWriters--;
+
+		readQueue.transferAccess(writer);
+		writer.ready();
+	}
+
+	/**
+	 * Make <i>thread</i>, which holds the lock, the owner of both wait
+	 * queues, so that waiting threads donate to it.
+	 */
+	private void setHolder(KThread thread) {
+		writeQueue.transferAccess(thread);
+		readQueue.transferAccess(thread);
+	}
+
+	private KThread writer = null;
+
+	/** The readers holding the lock; the first owns the wait queues. */
+	private ArrayList<KThread> readers = new ArrayList<KThread>();
+
+	private int waitingReaders = 0;
+
+	private int waitingWriters = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	/**
+	 * Check exclusion between readers and writers and, under round robin,
+	 * sharing between readers, preference of writers and the batch wake-up
+	 * of readers, then, under
+	 * <tt>PriorityScheduler</tt>, that a high-priority writer boosts the
+	 * readers it waits for.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final StringBuffer log = new StringBuffer();
+		final int active[] = {0, 0}; // readers, writers
+
+		class Reader implements Runnable {
+			Reader(String name) {
+				this.name = name;
+			}
+
+			public void run() {
+				lock.acquireRead();
+				Lib.assertTrue(active[1] == 0);
+				active[0]++;
+				log.append(name);
+				for (int i = 0; i < 3; i++)
+					KThread.yield();
+				log.append(name);
+				active[0]--;
+				lock.releaseRead();
+			}
+
+			String name;
+		}
+
+		class Writer implements Runnable {
+			Writer(String name) {
+				this.name = name;
+			}
+
+			public void run() {
+				lock.acquireWrite();
+				Lib.assertTrue(active[0] == 0 && active[1] == 0);
+				active[1]++;
+				log.append(name);
+				KThread.yield();
+				log.append(name);
+				active[1]--;
+				lock.releaseWrite();
+			}
+
+			String name;
+		}
+
+		// two readers share the lock; writer W arrives while they hold it, so
+		// reader c, arriving after W, waits; then c and d are woken together.
+		// Only round robin makes the order certain.
+		lock.acquireWrite();
+		KThread[] threads = {
+				new KThread(new Reader("a")).setName("a"),
+				new KThread(new Reader("b")).setName("b"),
+				new KThread(new Writer("W")).setName("W"),
+				new KThread(new Reader("c")).setName("c"),
+				new KThread(new Reader("d")).setName("d") };
+		lock.releaseWrite();
+
+		threads[0].fork();
+		threads[1].fork();
+		KThread.yield();
+		threads[2].fork();
+		threads[3].fork();
+		threads[4].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		if (ThreadedKernel.scheduler instanceof RoundRobinScheduler)
+			Lib.assertTrue(log.toString().equals("ababWWcdcd"),
+					"unexpected order " + log);
+
+		System.out.println("ReadWriteLock: sharing and writer preference tests passed");
+
+		// the lottery scheduler is a PriorityScheduler with other limits
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler
+				&& !(ThreadedKernel.scheduler instanceof LotteryScheduler))
+			donationTest();
+	}
+
+	/**
+	 * A low-priority reader holds the lock while a medium-priority thread
+	 * spins; a high-priority writer waiting for the lock must lift the reader
+	 * above the spinner.
+	 */
+	private static void donationTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final boolean done[] = {false};
+		final int spins[] = {0};
+
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				KThread.yield();
+				lock.releaseRead();
+			}
+		}).setName("low reader");
+		KThread spinner = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0]) {
+					spins[0]++;
+					KThread.yield();
+				}
+			}
+		}).setName("medium spinner");
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				done[0] = true;
+				lock.releaseWrite();
+			}
+		}).setName("high writer");
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(reader, 1);
+		ThreadedKernel.scheduler.setPriority(spinner, 4);
+		ThreadedKernel.scheduler.setPriority(writer, 7);
+		int old = ThreadedKernel.scheduler.getPriority();
+		Machine.interrupt().restore(intStatus);
+
+		reader.fork();
+		KThread.yield();
+		spinner.fork();
+		writer.fork();
+
+		// let everyone run below us
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(0);
+		Machine.interrupt().restore(intStatus);
+
+		writer.join();
+		spinner.join();
+		reader.join();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(old);
+		Machine.interrupt().restore(intStatus);
+
+		Lib.assertTrue(spins[0] <= 2, "spinner ran " + spins[0] + " times");
+		System.out.println("ReadWriteLock: priority donation test passed");
+	}
+}
@@ -1,47 +1,23 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.HashMap;
-
-
 
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ *
+ * <p>
+ * Each tag has a slot, created the first time the tag is used and reused
+ * for every later exchange on it. A slot holds at most one unpaired thread:
+ * the next thread to arrive pairs with it at once, takes its value, leaves
+ * its own value in the waiter, and wakes it. Arrivals on a tag are therefore
+ * paired in the order they come, and an exchange allocates nothing once its
+ * tag has a slot.
  */
 public class Rendezvous {
-
-    private final HashMap<Integer, Pair> exchangeMap;
-    private final HashMap<Integer, Boolean> TagIsExchanging;
-    private final Lock lock;
-
-    // private Lock lock;
-    // private Integer firstValue;
-    // private Integer valueB;
-    // private final HashMap <Integer, Condition> conditions;
-    // private final HashMap <Integer, Integer> values;
-    // private boolean firstArrived;
-    // private boolean isBWaiting; 
-
-
-    
-
     /**
      * Allocate a new Rendezvous.
      */
     public Rendezvous () {
-
-        lock = new Lock();
-        exchangeMap = new HashMap<Integer, Pair>();
-        TagIsExchanging = new HashMap<Integer, Boolean>();
-        // conditions = new HashMap<Integer, Condition>();
-        // values = new HashMap<Integer, Integer>();
-        // firstArrived = false;
-        // firstValue = null;
-        // conditionA = new Condition(lock);
-        // conditionB = new Condition(lock);
-        // isAWaiting = false;
-        // isBWaiting = false;
-
     }
 
     /**
@@ -61,79 +37,95 @@ public class Rendezvous {
      * @param value the integer to exchange.
      */
     public int exchange (int tag, int value) {
-        lock.acquire();
-        Condition2 condition = new Condition2(lock);
-        if (TagIsExchanging.containsKey(tag)) {
-            while (TagIsExchanging.get(tag)) {
-                condition.sleepFor(1000);
-            }
+        boolean intStatus = Machine.interrupt().disable();
+
+        Slot slot = getSlot(tag);
+        KThread current = KThread.currentThread();
+        int otherValue;
+
+        if (slot.waiter == null) {
+            slot.waiter = current;
+            slot.value = value;
+            KThread.sleep();
+
+            // our partner left its value with us
+            otherValue = current.exchangeValue;
         }
-        if (!exchangeMap.containsKey(tag)) {
-            Pair pair = new Pair(condition, value);
-            exchangeMap.put(tag, pair);
-            TagIsExchanging.put(tag, false);
-            pair.getCondition().sleep();
-            int otherValue = exchangeMap.get(tag).getValue();
-            exchangeMap.remove(tag);
-            // \\\\\\\\\\\\\\\\\\\\\\\\\\
-            TagIsExchanging.put(tag, false);
-            lock.release();
-            return otherValue;
-        } else {
-            Pair pair = exchangeMap.get(tag);
-            int otherValue = pair.getValue();
-            
-            exchangeMap.put(tag, new Pair(condition, value));
-            TagIsExchanging.put(tag, true);
-            pair.getCondition().wake();
-            lock.release();
-            return otherValue;
-           
+        else {
+            KThread partner = slot.waiter;
+            slot.waiter = null;
+            otherValue = slot.value;
+
+            partner.exchangeValue = value;
+            partner.ready();
         }
 
-        //-------------------------------------------
-        // Way 2
-
-        // if (!exchangeMap.containsKey(tag)) {
-        //     Condition condition = new Condition(lock);
-        //     Pair pair = new Pair(condition, value);
-        //     exchangeMap.put(tag, pair);
-        //     pair.getCondition().sleep();
-        //     int otherValue = exchangeMap.get(tag).getValue();
-        //     exchangeMap.remove(tag);
-        //     lock.release();
-        //     return otherValue;
-        // }
-        
-        //-------------------------------------------------------------
-        // Way 3
-        // while (TagIsExchanging.get)
+        Machine.interrupt().restore(intStatus);
+        return otherValue;
+    }
 
-        
+    /**
+     * Return the slot for <i>tag</i>, creating it if this is the first
+     * exchange on the tag.
+     */
+    private Slot getSlot (int tag) {
+        int index = tag & (table.length - 1);
+        for (Slot slot = table[index]; slot != null; slot = slot.next) {
+            if (slot.tag == tag)
+                return slot;
+        }
+
+        if (numSlots >= table.length)
+            grow();
+
+        index = tag & (table.length - 1);
+        Slot slot = new Slot(tag);
+        slot.next = table[index];
+        table[index] = slot;
+        numSlots++;
+
+        return slot;
     }
 
-    private static class Pair {
-        private Condition2 condition;
-        private Integer value;
-        // private boolean isExchanging;
+    private void grow () {
+        Slot[] old = table;
+        table = new Slot[old.length * 2];
+
+        for (Slot slot : old) {
+            while (slot != null) {
+                Slot next = slot.next;
+                int index = slot.tag & (table.length - 1);
+                slot.next = table[index];
+                table[index] = slot;
+                slot = next;
+            }
+        }
+    }
 
-        public Pair(Condition2 condition, int value) {
-            this.condition = condition;
-            this.value = value;
+    /**
+     * The synchronization point for one tag.
+     */
+    private static class Slot {
+        Slot (int tag) {
+            this.tag = tag;
         }
 
+        final int tag;
 
-        public Integer getValue() {
-            return value;
-        }
+        /** The thread waiting for a partner, or <tt>null</tt>. */
+        KThread waiter = null;
 
+        /** The value <tt>waiter</tt> brought. */
+        int value;
 
-        public Condition2 getCondition() {
-            return condition;
-        }
-        
+        /** The next slot in the same hash bucket. */
+        Slot next = null;
     }
 
+    /** Slots hashed by tag; the length is always a power of two. */
+    private Slot[] table = new Slot[16];
+
+    private int numSlots = 0;
 
     // Place Rendezvous test code inside of the Rendezvous class.
 
@@ -370,6 +362,44 @@ public class Rendezvous {
         
     }
 
+    /**
+     * Run a pair of threads on each of <i>tags</i> tags, every pair
+     * exchanging <i>rounds</i> times, and report the cost per exchange.
+     */
+    public static void rendezvousBenchmark(int tags, final int rounds) {
+        final Rendezvous r = new Rendezvous();
+        KThread[] threads = new KThread[2 * tags];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int tag = i / 2;
+            final int side = i % 2;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    for (int round = 0; round < rounds; round++) {
+                        int mine = 2 * round + side;
+                        int theirs = r.exchange(tag, mine);
+                        Lib.assertTrue(theirs == (mine ^ 1),
+                                       "tag " + tag + " got " + theirs + " for " + mine);
+                    }
+                }
+            }).setName("exchanger " + i);
+        }
+
+        long ticks = Machine.timer().getTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        long elapsed = System.nanoTime() - start;
+        ticks = Machine.timer().getTime() - ticks;
+
+        long exchanges = (long) tags * rounds;
+        System.out.println("rendezvousBenchmark: " + tags + " tags, "
+                           + (ticks / exchanges) + " ticks and "
+                           + (elapsed / exchanges) + " ns per exchange");
+    }
+
     // Invoke Rendezvous.selfTest() from ThreadedKernel.selfTest()
 
     public static void selfTest() {
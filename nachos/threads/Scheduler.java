@@ -50,6 +50,18 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+	 * calls this once, when the first thread is created. Schedulers that
+	 * treat the ready queue differently from other queues override this; by
+	 * default it is an ordinary queue that does not transfer priority.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -151,4 +163,27 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * to charge the running thread for a time slice. Returns whether the
+	 * alarm should preempt the thread. By default every timer interrupt
+	 * preempts.
+	 * 
+	 * @param thread the thread that was running when the timer fired.
+	 * @return <tt>true</tt> if the thread should yield the CPU.
+	 */
+	public boolean timerInterrupt(KThread thread) {
+		return true;
+	}
+
+	/**
+	 * Called with interrupts disabled when a thread finishes, so that the
+	 * scheduler can release anything it holds for the thread. By default
+	 * this does nothing.
+	 * 
+	 * @param thread the thread that has finished.
+	 */
+	public void threadFinished(KThread thread) {
+	}
 }
@@ -14,6 +14,14 @@ import nachos.machine.*;
  * </ul>
  * 
  * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> take and return <i>n</i> units at once, and
+ * <tt>tryP(n)</tt> takes them only if that needs no wait. Waiters are served in
+ * the order the scheduler's wait queue gives them, and a waiter for many units
+ * holds back those behind it rather than letting smaller requests overtake it
+ * forever. A single <tt>V(n)</tt> readies every waiter it can satisfy before
+ * interrupts are restored.
+ * 
+ * <p>
  * Note that this API does not allow a thread to read the value of the semaphore
  * directly. Even if you did read the value, the only thing you would know is
  * what the value used to be. You don't know what the value is now, because by
@@ -35,32 +43,86 @@ public class Semaphore {
 	 * Atomically wait for this semaphore to become non-zero and decrement it.
 	 */
 	public void P() {
+		P(1);
+	}
+
+	/**
+	 * Atomically wait until this semaphore is at least <i>n</i> and no thread
+	 * is waiting ahead of this one, then decrease it by <i>n</i>.
+	 * 
+	 * @param n the number of units to take.
+	 */
+	public void P(int n) {
+		Lib.assertTrue(n > 0);
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		if (value == 0) {
-			waitQueue.waitForAccess(KThread.currentThread());
-			KThread.sleep();
+		if (waiting == 0 && value >= n) {
+			value -= n;
 		}
 		else {
-			value--;
+			KThread thread = KThread.currentThread();
+			thread.semaphoreUnits = n;
+			waiting++;
+			waitQueue.waitForAccess(thread);
+			KThread.sleep();
 		}
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically decrease this semaphore by <i>n</i> if it can be done without
+	 * waiting.
+	 * 
+	 * @param n the number of units to take.
+	 * @return <tt>true</tt> if the units were taken, <tt>false</tt> if the
+	 * value was too small or other threads are waiting.
+	 */
+	public boolean tryP(int n) {
+		Lib.assertTrue(n > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean taken = waiting == 0 && value >= n;
+		if (taken)
+			value -= n;
+
+		Machine.interrupt().restore(intStatus);
+		return taken;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
 	 */
 	public void V() {
+		V(1);
+	}
+
+	/**
+	 * Atomically increase this semaphore by <i>n</i>, and wake up every
+	 * waiting thread, in order, whose request can now be met.
+	 * 
+	 * @param n the number of units to return.
+	 */
+	public void V(int n) {
+		Lib.assertTrue(n > 0);
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		KThread thread = waitQueue.nextThread();
-		if (thread != null) {
-			thread.ready();
-		}
-		else {
-			value++;
+		value += n;
+
+		while (waiting > 0) {
+			if (next == null)
+				next = waitQueue.nextThread();
+			if (next.semaphoreUnits > value)
+				break;
+
+			value -= next.semaphoreUnits;
+			waiting--;
+			next.ready();
+			next = null;
 		}
 
 		Machine.interrupt().restore(intStatus);
@@ -97,10 +159,84 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		multipleTest();
+	}
+
+	/**
+	 * Check that <tt>tryP(n)</tt> does not wait, that a large request is not
+	 * overtaken by a smaller one behind it, and that one <tt>V(n)</tt> wakes
+	 * every waiter it can satisfy.
+	 */
+	private static void multipleTest() {
+		final Semaphore pool = new Semaphore(4);
+		final StringBuffer log = new StringBuffer();
+
+		Lib.assertTrue(pool.tryP(3));
+		Lib.assertTrue(!pool.tryP(2));
+		pool.V(3);
+
+		// only round robin makes the order of the waiters certain
+		if (!(ThreadedKernel.scheduler instanceof RoundRobinScheduler)) {
+			System.out.println("Semaphore: multiple unit tests passed");
+			return;
+		}
+
+		class Taker implements Runnable {
+			Taker(String name, int units) {
+				this.name = name;
+				this.units = units;
+			}
+
+			public void run() {
+				pool.P(units);
+				log.append(name);
+			}
+
+			String name;
+
+			int units;
+		}
+
+		// with 1 unit free, a wants 3, then b and c want 1 each
+		pool.P(3);
+		KThread[] takers = {
+				new KThread(new Taker("a", 3)).setName("a"),
+				new KThread(new Taker("b", 1)).setName("b"),
+				new KThread(new Taker("c", 1)).setName("c") };
+		for (int i = 0; i < takers.length; i++) {
+			takers[i].fork();
+			KThread.yield();
+		}
+
+		// b and c queue behind a even though a unit is free
+		Lib.assertTrue(log.length() == 0);
+		Lib.assertTrue(!pool.tryP(1));
+
+		// 1 + 3 units meet a and then b; c still waits
+		pool.V(3);
+		takers[0].join();
+		takers[1].join();
+		Lib.assertTrue(log.length() == 2);
+
+		pool.V(1);
+		takers[2].join();
+		Lib.assertTrue(log.toString().equals("abc") && !pool.tryP(1));
+
+		System.out.println("Semaphore: multiple unit tests passed");
 	}
 
 	private int value;
 
+	/** The number of threads waiting in <tt>P()</tt>. */
+	private int waiting = 0;
+
+	/**
+	 * The waiter taken from <tt>waitQueue</tt> whose request is still too
+	 * large, or <tt>null</tt>. It is served before anyone still queued.
+	 */
+	private KThread next = null;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
@@ -0,0 +1,567 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that gives threads proportional shares deterministically.
+ * 
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, like a
+ * lottery scheduler. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i> value. The thread with the
+ * lowest pass is always dequeued next. Only the ready queue then advances its
+ * pass by its stride, so that a thread is charged for each quantum of CPU
+ * time and not for each lock or semaphore it is handed. Over any interval a
+ * thread is run in proportion to its tickets, with an error of at most one
+ * quantum, instead of only on average.
+ * 
+ * <p>
+ * Each queue keeps its waiters in a binary heap ordered by pass, with ties
+ * going to the thread that has waited longest. A thread that becomes ready is
+ * never given a pass below the ready queue's virtual time, so sleeping does
+ * not bank CPU time. When a ready thread's tickets change, the part of its
+ * pass still ahead of the virtual time is rescaled to the new stride. Passes
+ * are compared by their difference, so they may wrap around.
+ * 
+ * <p>
+ * Tickets are transferred through locks and joins, and add up, as with a
+ * lottery scheduler.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority, false);
+	}
+
+	/**
+	 * Allocate the ready queue, the one queue that charges a thread its
+	 * stride each time it is dequeued.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return new StrideQueue(false, true);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getThreadState(thread).getEffectiveTickets(),
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with one ticket. Strides stay distinct up to about
+	 * a billion tickets, and the ready queue's virtual time advances by at most
+	 * this much per quantum, so passes in use stay far less than 2<sup>63</sup>
+	 * apart.
+	 */
+	private static final long stride1 = 1L << 30;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority, boolean charging) {
+			this.transferPriority = transferPriority;
+			this.charging = charging;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public void transferAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.waitingOn = null;
+			updateDonation();
+
+			if (charging) {
+				if (next.pass - virtualTime > 0)
+					virtualTime = next.pass;
+				next.pass += next.stride();
+			}
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			return (size == 0) ? null : heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+		}
+
+		void insert(ThreadState state) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			siftUp(size++, state);
+			total += state.getEffectiveTickets();
+		}
+
+		void remove(ThreadState state) {
+			total -= state.getEffectiveTickets();
+
+			int index = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				siftUp(index, last);
+				siftDown(last.heapIndex, last);
+			}
+		}
+
+		/**
+		 * Restore the heap order around a waiter whose pass just changed.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex, state);
+			siftDown(state.heapIndex, state);
+		}
+
+		private void siftUp(int index, ThreadState state) {
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (!state.before(heap[parent]))
+					break;
+
+				place(parent, index);
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index, ThreadState state) {
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && heap[child + 1].before(heap[child]))
+					child++;
+				if (!heap[child].before(state))
+					break;
+
+				place(child, index);
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void place(int from, int to) {
+			heap[to] = heap[from];
+			heap[to].heapIndex = to;
+		}
+
+		/**
+		 * Give this queue to a new owner, taking its donated tickets back from
+		 * the old owner and giving them to the new one.
+		 */
+		void setOwner(ThreadState newOwner) {
+			if (owner != null && donated != 0)
+				owner.changeReceived(-donated);
+
+			owner = newOwner;
+			donated = 0;
+			updateDonation();
+		}
+
+		/**
+		 * Pass any change in the waiting threads' total tickets on to the
+		 * owner.
+		 */
+		void updateDonation() {
+			if (!transferPriority || owner == null || donated == total)
+				return;
+
+			long delta = total - donated;
+			donated = total;
+			owner.changeReceived(delta);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * <tt>true</tt> for the ready queue, which charges each thread it
+		 * dequeues a stride and keeps a virtual time.
+		 */
+		boolean charging;
+
+		/** The thread that last acquired this queue, if any. */
+		ThreadState owner = null;
+
+		/** The number of tickets this queue currently gives its owner. */
+		long donated = 0;
+
+		/** The sum of the waiting threads' effective tickets. */
+		long total = 0;
+
+		/** The pass of the most recently dequeued thread, if charging. */
+		long virtualTime = 0;
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its tickets, the tickets donated to
+	 * it, its pass, and the queue it is waiting on, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.tickets = priorityDefault;
+		}
+
+		/**
+		 * Return the number of tickets this thread holds, counting the tickets
+		 * donated to it.
+		 * 
+		 * @return the effective number of tickets.
+		 */
+		public long getEffectiveTickets() {
+			return tickets + received;
+		}
+
+		/**
+		 * Set this thread's own number of tickets.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			if (delta == 0)
+				return;
+
+			long oldStride = stride();
+			this.tickets = tickets;
+			changeEffective(delta, oldStride);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the thread is now waiting on.
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitOrder = numWaits++;
+			if (waitQueue.charging && waitQueue.virtualTime - pass > 0)
+				pass = waitQueue.virtualTime;
+
+			waitQueue.insert(this);
+			waitQueue.updateDonation();
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the thread has acquired.
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			waitQueue.setOwner(this);
+		}
+
+		long stride() {
+			return Math.max(1, stride1 / getEffectiveTickets());
+		}
+
+		boolean before(ThreadState other) {
+			long difference = pass - other.pass;
+			return difference < 0
+					|| (difference == 0 && waitOrder < other.waitOrder);
+		}
+
+		void changeReceived(long delta) {
+			long oldStride = stride();
+			received += delta;
+			changeEffective(delta, oldStride);
+		}
+
+		/**
+		 * Rescale the pass still ahead of the ready queue's virtual time to the
+		 * new stride, and pass the ticket change on to the queue's owner.
+		 */
+		private void changeEffective(long delta, long oldStride) {
+			if (waitingOn == null)
+				return;
+
+			long remaining = pass - waitingOn.virtualTime;
+			if (waitingOn.charging && remaining > 0) {
+				pass = waitingOn.virtualTime
+						+ (long) ((double) remaining * stride() / oldStride);
+				waitingOn.update(this);
+			}
+
+			waitingOn.total += delta;
+			waitingOn.updateDonation();
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The thread's own tickets. */
+		protected int tickets;
+
+		/** The tickets donated to the thread by the queues it owns. */
+		protected long received = 0;
+
+		/** The thread's pass value. */
+		protected long pass = 0;
+
+		/** The queue this thread is waiting on, if any. */
+		StrideQueue waitingOn = null;
+
+		/** When this thread started waiting, to break ties in pass. */
+		long waitOrder;
+
+		/** This thread's position in the heap of <tt>waitingOn</tt>. */
+		int heapIndex;
+	}
+
+	private long numWaits = 0;
+
+	/**
+	 * Test that stride scheduling gives exact proportional shares, that lock
+	 * and semaphore traffic does not skew them, and that tickets add up
+	 * through locks and joins.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+			return;
+
+		final StrideScheduler scheduler = (StrideScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		// every prefix of the schedule stays within one choice of the shares
+		ThreadQueue queue = scheduler.newReadyQueue();
+		KThread threads[] = new KThread[3];
+		int chosen[] = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("t" + i);
+			scheduler.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+		}
+		for (int round = 1; round <= 600; round++) {
+			KThread next = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (next == threads[i])
+					chosen[i]++;
+				Lib.assertTrue(Math.abs(chosen[i] * 6 - round * (i + 1)) <= 6);
+			}
+			queue.waitForAccess(next);
+		}
+		Lib.assertTrue(chosen[0] == 100 && chosen[1] == 200 && chosen[2] == 300);
+
+		// handing a contended lock or a semaphore to a thread costs it no
+		// share of the CPU
+		ThreadQueue ready = scheduler.newReadyQueue();
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+		ThreadQueue semaphore = scheduler.newThreadQueue(false);
+		KThread cpu = new KThread().setName("cpu");
+		KThread locker = new KThread().setName("locker");
+		KThread holder = new KThread().setName("holder");
+		int cpuRuns = 0, lockerRuns = 0;
+		ready.waitForAccess(cpu);
+		ready.waitForAccess(locker);
+		for (int round = 0; round < 600; round++) {
+			KThread next = ready.nextThread();
+			if (next == cpu) {
+				cpuRuns++;
+			}
+			else {
+				lockerRuns++;
+				lock.acquire(holder);
+				lock.waitForAccess(locker);
+				Lib.assertTrue(lock.nextThread() == locker);
+				Lib.assertTrue(lock.nextThread() == null);
+				semaphore.waitForAccess(locker);
+				Lib.assertTrue(semaphore.nextThread() == locker);
+			}
+			ready.waitForAccess(next);
+		}
+		Lib.assertTrue(cpuRuns == 300 && lockerRuns == 300, "split " + cpuRuns
+				+ ":" + lockerRuns);
+
+		// tickets add up through locks
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		scheduler.setPriority(a, 5);
+		scheduler.setPriority(b, 10);
+		scheduler.setPriority(c, 20);
+
+		ThreadQueue lock1 = scheduler.newThreadQueue(true);
+		ThreadQueue lock2 = scheduler.newThreadQueue(true);
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(c);
+		lock2.waitForAccess(a);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 25);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 35);
+
+		Lib.assertTrue(lock2.nextThread() == a);
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 10);
+		Lib.assertTrue(lock1.nextThread() == c);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 5);
+
+		scheduler.setPriority(KThread.currentThread(), 7);
+
+		// a joining thread lends its tickets to the thread it joins
+		KThread child = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				Lib.assertTrue(scheduler.getEffectivePriority() == 8);
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("child");
+		child.fork();
+		child.join();
+
+		scheduler.setPriority(priorityDefault);
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("StrideScheduler: share and transfer tests passed");
+	}
+}
@@ -1,25 +1,52 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, optionally bounded.
+ * 
+ * <p>
+ * When a bounded queue is full, <tt>add()</tt> waits for room, while
+ * <tt>offer()</tt> drops the object and returns <tt>false</tt>.
+ * <tt>drainTo()</tt> removes a whole burst under one acquisition of the lock.
+ * 
+ * <p>
+ * Wake-ups are coalesced: adding to a non-empty queue or removing from a
+ * queue that was not full wakes nobody, since any waiter was already woken
+ * when the queue changed state. A woken thread that leaves objects, or room,
+ * behind passes the wake-up on to the next waiter.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new, unbounded synchronized queue.
 	 */
 	public SynchList() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * objects.
+	 * 
+	 * @param capacity the most objects the queue can hold.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
 		list = new LinkedList<Object>();
 		lock = new Lock();
 		listEmpty = new Condition(lock);
+		listFull = new Condition(lock);
 	}
 
 	/**
-	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 * Add the specified object to the end of the queue, waiting while the
+	 * queue is full. If another thread is waiting in <tt>removeFirst()</tt> or
+	 * <tt>drainTo()</tt>, it is woken up.
 	 * 
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
@@ -27,11 +54,31 @@ public class SynchList {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
-		list.add(o);
-		listEmpty.wake();
+		while (list.size() == capacity)
+			listFull.sleep();
+		append(o);
 		lock.release();
 	}
 
+	/**
+	 * Add the specified object to the end of the queue if it has room.
+	 * 
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, <tt>false</tt> if the
+	 * queue was full and the object was dropped.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean added = list.size() < capacity;
+		if (added)
+			append(o);
+		lock.release();
+
+		return added;
+	}
+
 	/**
 	 * Remove an object from the front of the queue, blocking until the queue is
 	 * non-empty if necessary.
@@ -45,11 +92,63 @@ public class SynchList {
 		while (list.isEmpty())
 			listEmpty.sleep();
 		o = list.removeFirst();
+		removed(1);
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Move up to <i>max</i> objects from the front of the queue to the end of
+	 * <i>c</i>, in order, blocking only until the queue is non-empty.
+	 * 
+	 * @param c the collection to add the objects to.
+	 * @param max the most objects to move.
+	 * @return the number of objects moved, at least one unless <i>max</i> is
+	 * zero.
+	 */
+	public int drainTo(Collection<Object> c, int max) {
+		Lib.assertTrue(max >= 0);
+		if (max == 0)
+			return 0;
+
+		lock.acquire();
+		while (list.isEmpty())
+			listEmpty.sleep();
+
+		int n = Math.min(max, list.size());
+		for (int i = 0; i < n; i++)
+			c.add(list.removeFirst());
+		removed(n);
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Append <i>o</i>, which fits, and wake a remover if the queue was empty.
+	 * Pass a wake-up on to the next adder if there is still room.
+	 */
+	private void append(Object o) {
+		list.add(o);
+
+		if (list.size() == 1)
+			listEmpty.wake();
+		if (list.size() < capacity)
+			listFull.wake();
+	}
+
+	/**
+	 * Wake an adder if the last <i>n</i> removals made room in a full queue.
+	 * Pass a wake-up on to the next remover if objects are left.
+	 */
+	private void removed(int n) {
+		if (list.size() + n == capacity)
+			listFull.wake();
+		if (!list.isEmpty())
+			listEmpty.wake();
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +179,58 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		boundedTest();
+	}
+
+	/**
+	 * Check that a full bounded queue drops offers and holds back adders, and
+	 * that <tt>drainTo()</tt> moves a burst in order.
+	 */
+	private static void boundedTest() {
+		final SynchList list = new SynchList(4);
+		LinkedList<Object> burst = new LinkedList<Object>();
+
+		for (int i = 0; i < 4; i++)
+			Lib.assertTrue(list.offer(Integer.valueOf(i)));
+		Lib.assertTrue(!list.offer(Integer.valueOf(4)));
+
+		final int added[] = {0};
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 4; i < 10; i++) {
+					list.add(Integer.valueOf(i));
+					added[0]++;
+				}
+			}
+		}).setName("producer");
+		producer.fork();
+		KThread.yield();
+
+		// the producer is stuck until we make room
+		Lib.assertTrue(added[0] == 0);
+
+		for (int taken = 0; taken < 10;) {
+			int n = list.drainTo(burst, 3);
+			Lib.assertTrue(n >= 1 && n <= 3);
+			taken += n;
+		}
+		producer.join();
+
+		Lib.assertTrue(list.drainTo(burst, 0) == 0);
+		for (int i = 0; i < 10; i++)
+			Lib.assertTrue(((Integer) burst.removeFirst()).intValue() == i);
+
+		System.out.println("SynchList: bounded queue tests passed");
 	}
 
+	private int capacity;
+
 	private LinkedList<Object> list;
 
 	private Lock lock;
 
 	private Condition listEmpty;
+
+	private Condition listFull;
 }
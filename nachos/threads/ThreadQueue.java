@@ -90,6 +90,22 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Notify this thread queue that access has passed to <i>thread</i> while
+	 * other threads may still be waiting, without going through
+	 * <tt>nextThread()</tt>. This happens with objects that several threads
+	 * hold at once, such as a <tt>ReadWriteLock</tt> held by readers, when
+	 * the holder that waiters donate to changes.
+	 * 
+	 * <p>
+	 * Queues that transfer priority move the waiters' donation to
+	 * <i>thread</i>; by default nothing happens.
+	 * 
+	 * @param thread the thread that now has access.
+	 */
+	public void transferAccess(KThread thread) {
+	}
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
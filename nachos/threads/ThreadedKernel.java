@@ -51,7 +51,16 @@ public class ThreadedKernel extends Kernel {
 		// Semaphore.selfTest();
 		// SynchList.selfTest();
 		// Condition2.selfTest();
+		// Channel.selfTest();
+		// ReadWriteLock.selfTest();
 		// Rendezvous.selfTest();
+		// PriorityScheduler.selfTest();
+		// LotteryScheduler.selfTest();
+		// StrideScheduler.selfTest();
+		// MLFQScheduler.selfTest();
+		// FairScheduler.selfTest();
+		// EDFScheduler.selfTest();
+		// Future.selfTest();
 
 		//if (Machine.bank() != null) {
 		//	ElevatorBank.selfTest();
@@ -33,6 +33,16 @@ public class UThread extends KThread {
 		Lib.assertNotReached();
 	}
 
+	/**
+	 * Return this thread's process, so that schedulers that share the CPU
+	 * between groups of threads share it between processes.
+	 * 
+	 * @return the process this thread belongs to.
+	 */
+	public Object getSchedulingGroup() {
+		return process;
+	}
+
 	/**
 	 * Save state before giving up the processor to another thread.
 	 */
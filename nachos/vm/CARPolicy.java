@@ -0,0 +1,164 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.IVT;
+
+/**
+ * CAR, or Clock with Adaptive Replacement: ARC run over two clocks, so that
+ * it needs only the hardware's <tt>used</tt> bits.
+ *
+ * <p>
+ * Frames are on one of two clocks. <i>T1</i> holds pages referenced once
+ * since they were loaded, <i>T2</i> pages referenced again. The history lists
+ * <i>B1</i> and <i>B2</i> remember which pages were recently evicted from
+ * each. A fault on a page remembered in <i>B1</i> means <i>T1</i> was too
+ * small, so its target size <i>p</i> grows; a fault on one remembered in
+ * <i>B2</i> shrinks it. When a page must be evicted, the hand of whichever
+ * clock is over its target sweeps: a referenced page moves to the tail of
+ * <i>T2</i> with its bit cleared, and the first unreferenced one is evicted.
+ * Scans that touch each page once therefore pass through <i>T1</i> without
+ * displacing the pages in <i>T2</i>.
+ */
+public class CARPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new CAR policy.
+	 */
+	public CARPolicy() {
+		capacity = VMKernel.invertedPT.length;
+	}
+
+	public void pageLoaded(int ppn) {
+		IVT frame = VMKernel.invertedPT[ppn];
+		Page page = new Page(frame.Vprocess, frame.vpn);
+
+		if (b1.contains(page)) {
+			int delta = Math.max(1, b2.size() / b1.size());
+			p = Math.min(p + delta, capacity);
+			b1.remove(page);
+			t2.add(ppn);
+		}
+		else if (b2.contains(page)) {
+			int delta = Math.max(1, b1.size() / b2.size());
+			p = Math.max(p - delta, 0);
+			b2.remove(page);
+			t2.add(ppn);
+		}
+		else {
+			// keep the history to one memory's worth of pages per list
+			if (replaced) {
+				if (t1.size() + b1.size() >= capacity && !b1.isEmpty())
+					removeOldest(b1);
+				else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * capacity
+						&& !b2.isEmpty())
+					removeOldest(b2);
+			}
+			t1.add(ppn);
+		}
+
+		frame.te.used = false;
+		replaced = false;
+	}
+
+	public void pageFreed(int ppn) {
+		Integer frame = Integer.valueOf(ppn);
+		if (!t1.remove(frame))
+			t2.remove(frame);
+	}
+
+	public int findVictim() {
+		int pinnedT1 = 0, pinnedT2 = 0;
+
+		replaced = true;
+
+		while (true) {
+			boolean fromT1 = t1.size() >= Math.max(1, p) || t2.isEmpty();
+
+			// a clock whose pages are all pinned gives way to the other
+			if (fromT1 && pinnedT1 >= t1.size())
+				fromT1 = false;
+			else if (!fromT1 && pinnedT2 >= t2.size())
+				fromT1 = true;
+			Lib.assertTrue(pinnedT1 < t1.size() || pinnedT2 < t2.size());
+
+			LinkedList<Integer> clock = fromT1 ? t1 : t2;
+			int ppn = clock.removeFirst();
+			IVT frame = VMKernel.invertedPT[ppn];
+
+			if (frame.isPinned) {
+				clock.add(ppn);
+				if (fromT1)
+					pinnedT1++;
+				else
+					pinnedT2++;
+				continue;
+			}
+
+			if (!frame.te.used) {
+				(fromT1 ? b1 : b2).add(new Page(frame.Vprocess, frame.vpn));
+				return ppn;
+			}
+
+			frame.te.used = false;
+			t2.add(ppn);
+			if (fromT1)
+				pinnedT1 = 0;
+			else
+				pinnedT2 = 0;
+		}
+	}
+
+	private static void removeOldest(LinkedHashSet<Page> history) {
+		Iterator<Page> i = history.iterator();
+		i.next();
+		i.remove();
+	}
+
+	/**
+	 * A virtual page of a process, remembered after it leaves memory.
+	 */
+	private static class Page {
+		Page(VMProcess process, int vpn) {
+			this.process = process;
+			this.vpn = vpn;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Page))
+				return false;
+
+			Page page = (Page) o;
+			return page.process == process && page.vpn == vpn;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(process) * 31 + vpn;
+		}
+
+		private VMProcess process;
+
+		private int vpn;
+	}
+
+	/** The number of frames. */
+	private int capacity;
+
+	/** The target size of <tt>t1</tt>. */
+	private int p = 0;
+
+	/** Set by <tt>findVictim()</tt> until the next page is loaded. */
+	private boolean replaced = false;
+
+	/** Frames referenced once since loading, from the hand onwards. */
+	private LinkedList<Integer> t1 = new LinkedList<Integer>();
+
+	/** Frames referenced more than once, from the hand onwards. */
+	private LinkedList<Integer> t2 = new LinkedList<Integer>();
+
+	/** Pages recently evicted from each clock, oldest first. */
+	private LinkedHashSet<Page> b1 = new LinkedHashSet<Page>(),
+			b2 = new LinkedHashSet<Page>();
+}
@@ -0,0 +1,39 @@
+package nachos.vm;
+
+import nachos.vm.VMKernel.IVT;
+
+/**
+ * The clock, or second-chance, algorithm. A hand sweeps the frames in order,
+ * clearing <tt>used</tt> bits, and evicts the first unpinned frame whose bit
+ * is already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy, with its hand at frame 0.
+	 */
+	public ClockPolicy() {
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public void pageFreed(int ppn) {
+	}
+
+	public int findVictim() {
+		IVT[] frames = VMKernel.invertedPT;
+
+		while (frames[hand].isPinned || frames[hand].te.used) {
+			if (!frames[hand].isPinned)
+				frames[hand].te.used = false;
+			hand = (hand + 1) % frames.length;
+		}
+
+		int victim = hand;
+		hand = (hand + 1) % frames.length;
+
+		return victim;
+	}
+
+	private int hand = 0;
+}
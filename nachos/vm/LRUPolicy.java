@@ -0,0 +1,69 @@
+package nachos.vm;
+
+import nachos.vm.VMKernel.IVT;
+
+/**
+ * Least recently used replacement, for comparison with the approximations.
+ *
+ * <p>
+ * The hardware records a reference only by setting a <tt>used</tt> bit, so
+ * recency is known at the granularity of page faults: at every fault, each
+ * frame whose bit is set is stamped with the fault's number and its bit is
+ * cleared. The victim is the unpinned frame with the oldest stamp, which is
+ * exact LRU over the references seen between faults; ties go to the lower
+ * frame number.
+ */
+public class LRUPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new LRU policy.
+	 */
+	public LRUPolicy() {
+		lastUse = new long[VMKernel.invertedPT.length];
+	}
+
+	public void pageLoaded(int ppn) {
+		sample();
+		lastUse[ppn] = now;
+		VMKernel.invertedPT[ppn].te.used = false;
+	}
+
+	public void pageFreed(int ppn) {
+	}
+
+	public int findVictim() {
+		sample();
+
+		IVT[] frames = VMKernel.invertedPT;
+		int victim = -1;
+
+		for (int ppn = 0; ppn < frames.length; ppn++) {
+			if (!frames[ppn].isPinned
+					&& (victim == -1 || lastUse[ppn] < lastUse[victim]))
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	/**
+	 * Start a new interval, stamping and clearing every frame referenced in
+	 * the last one.
+	 */
+	private void sample() {
+		IVT[] frames = VMKernel.invertedPT;
+
+		now++;
+		for (int ppn = 0; ppn < frames.length; ppn++) {
+			if (frames[ppn].te.used) {
+				lastUse[ppn] = now;
+				frames[ppn].te.used = false;
+			}
+		}
+	}
+
+	/** The number of the current interval between faults. */
+	private long now = 0;
+
+	/** The last interval in which each frame was referenced. */
+	private long[] lastUse;
+}
@@ -0,0 +1,41 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical page to evict when a page fault finds no free
+ * page. The policy is named by <tt>VMKernel.replacementPolicy</tt> in
+ * <tt>nachos.conf</tt>, and sees the frames through
+ * <tt>VMKernel.invertedPT</tt>.
+ *
+ * <p>
+ * The simulated hardware reports references only through the <tt>used</tt>
+ * and <tt>dirty</tt> bits of each <tt>TranslationEntry</tt>. A policy may
+ * clear <tt>used</tt> bits; nothing else in the kernel reads them.
+ *
+ * <p>
+ * All methods are called with <tt>VMKernel.IVTLock</tt> held.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Called after a page has been loaded into frame <i>ppn</i>, whose
+	 * <tt>invertedPT</tt> entry now names the page.
+	 *
+	 * @param ppn the frame that was filled.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Called when the process owning the page in frame <i>ppn</i> releases it,
+	 * just before the frame returns to the free list.
+	 *
+	 * @param ppn the frame that was freed.
+	 */
+	public void pageFreed(int ppn);
+
+	/**
+	 * Choose a frame to evict. Every frame holds a page, and at least one is
+	 * not pinned; a pinned frame must not be chosen.
+	 *
+	 * @return the physical page number of the victim.
+	 */
+	public int findVictim();
+}
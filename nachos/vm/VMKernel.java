@@ -35,7 +35,9 @@ public class VMKernel extends UserKernel {
 		IVTLock = new Lock();
 		// pinSleepLock = new Lock();
 		// pinCondition = new Condition2(pinSleepLock);
-		victim = 0;
+		replacementPolicy = (PageReplacementPolicy) Lib.constructObject(Config
+				.getString("VMKernel.replacementPolicy",
+						"nachos.vm.ClockPolicy"));
 		freePhysicalPageLock = new Lock();
 	}
 
@@ -112,8 +114,8 @@ public class VMKernel extends UserKernel {
 	public static int pinnedPageNum;
 	public static Lock IVTLock;
 	
-	//use for clock algorithm
-	public static int victim;
+	/** Chooses the frame to evict when no physical page is free. */
+	public static PageReplacementPolicy replacementPolicy;
 	public static Lock freePhysicalPageLock;
 
 	// debug
@@ -63,8 +63,15 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		// hold off evictions, which could take one of these frames meanwhile
+		VMKernel.IVTLock.acquire();
+		for (int i = 0; i < pageTable.length; i++) {
+			if (pageTable[i].valid)
+				VMKernel.replacementPolicy.pageFreed(pageTable[i].ppn);
+		}
 
 		super.unloadSections();
+		VMKernel.IVTLock.release();
 	}
 
 	
@@ -94,7 +101,7 @@ public class VMProcess extends UserProcess {
 
 		//evict and swapping 
 		if (VMKernel.freePhysicalPages.isEmpty()) { // if no more free pages
-			//run clock algorithm to find victim page;
+			//ask the replacement policy for a victim page;
 			ppn = evict();
 		} else {
 			ppn = VMKernel.freePhysicalPages.removeFirst();
@@ -167,6 +174,7 @@ public class VMProcess extends UserProcess {
 		VMKernel.invertedPT[ppn].te = pageTable[vpn];
 		VMKernel.invertedPT[ppn].vpn = vpn;
 		VMKernel.invertedPT[ppn].Vprocess = this;
+		VMKernel.replacementPolicy.pageLoaded(ppn);
 		
 		// System.out.println("\n print after evicting");
 		// print();
@@ -187,24 +195,8 @@ public class VMProcess extends UserProcess {
 			pinSleepLock.release();
 		}
 
-		// run clock algorithm
-		int toEvict;
-		while(true) {
-
-			if (VMKernel.invertedPT[VMKernel.victim].isPinned) {
-				continue;
-			}
-
-			if (VMKernel.invertedPT[VMKernel.victim].te.used) {
-				VMKernel.invertedPT[VMKernel.victim].te.used = false;
-			}
-			else {
-				break;
-			}
-			VMKernel.victim = (VMKernel.victim + 1) % VMKernel.invertedPT.length;
-		}
-		toEvict = VMKernel.victim;
-		VMKernel.victim = (VMKernel.victim + 1) % VMKernel.invertedPT.length;
+		int toEvict = VMKernel.replacementPolicy.findVictim();
+		Lib.assertTrue(!VMKernel.invertedPT[toEvict].isPinned);
 
 		int vpn = VMKernel.invertedPT[toEvict].vpn;
 		VMProcess processThatLosePage = VMKernel.invertedPT[toEvict].Vprocess;
@@ -247,6 +239,7 @@ public class VMProcess extends UserProcess {
 		}
 		processTE.valid = false;
 		processTE.dirty = false;
+		Machine.processor().invalidateTranslation(vpn);
 
 		return toEvict;
 	}
@@ -0,0 +1,79 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.IVT;
+
+/**
+ * The WSClock algorithm. A hand sweeps the frames like the clock algorithm,
+ * but a frame is only a candidate once its page has left the working set:
+ * it has not been referenced for <tt>WSClockPolicy.window</tt> ticks. Among
+ * those, a clean page is evicted in preference to a dirty one, which would
+ * have to be written to swap first.
+ *
+ * <p>
+ * Page ages are measured in machine time rather than in each process's own
+ * virtual time, and since swap writes are synchronous, the sweep does not
+ * start write-backs of the dirty pages it passes. If one sweep finds no
+ * clean candidate, the first dirty candidate is evicted, or failing that,
+ * the page unused for longest.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		window = Config.getInteger("WSClockPolicy.window", 5000);
+		Lib.assertTrue(window > 0);
+
+		lastUse = new long[VMKernel.invertedPT.length];
+	}
+
+	public void pageLoaded(int ppn) {
+		lastUse[ppn] = Machine.timer().getTime();
+		VMKernel.invertedPT[ppn].te.used = false;
+	}
+
+	public void pageFreed(int ppn) {
+	}
+
+	public int findVictim() {
+		IVT[] frames = VMKernel.invertedPT;
+		long now = Machine.timer().getTime();
+		int dirty = -1, oldest = -1;
+
+		for (int i = 0; i < frames.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % frames.length;
+
+			if (frames[ppn].isPinned)
+				continue;
+
+			if (frames[ppn].te.used) {
+				frames[ppn].te.used = false;
+				lastUse[ppn] = now;
+			}
+			else if (now - lastUse[ppn] > window) {
+				if (!frames[ppn].te.dirty)
+					return ppn;
+				if (dirty == -1)
+					dirty = ppn;
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		int victim = (dirty != -1) ? dirty : oldest;
+		hand = (victim + 1) % frames.length;
+
+		return victim;
+	}
+
+	/** The age, in ticks, past which a page leaves the working set. */
+	private int window;
+
+	private int hand = 0;
+
+	/** The time each frame was last seen referenced. */
+	private long[] lastUse;
+}